@@ -0,0 +1,79 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Aggregating group_key x time_period rows as they arrive from the warehouse (ordered by period),
+// for result sizes from a filtered dashboard up to an unranked usage-type breakdown
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CostAggregatorBenchmark {
+
+    @Param({"25", "500", "5000"})
+    private int groups;
+
+    @Param({"12", "36"})
+    private int periods;
+
+    private String[] groupKeys;
+    private String[] timePeriods;
+    private long[] costs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        int rows = groups * periods;
+        groupKeys = new String[rows];
+        timePeriods = new String[rows];
+        costs = new long[rows];
+
+        int row = 0;
+        for (int p = 0; p < periods; p++) {
+            String period = (p % 12 + 1) + "-" + (2022 + p / 12);
+            for (int g = 0; g < groups; g++) {
+                // Fresh strings, like values decoded from a result set
+                groupKeys[row] = new String("USE1-BoxUsage:m5." + g + "xlarge");
+                timePeriods[row] = new String(period);
+                costs[row] = (long) (Math.exp(random.nextGaussian() * 2.0) * 10_000_000L);
+                row++;
+            }
+        }
+    }
+
+    @Benchmark
+    public CostAggregator aggregate() {
+        CostAggregator aggregator = new CostAggregator();
+        for (int i = 0; i < costs.length; i++) {
+            aggregator.add(groupKeys[i], timePeriods[i], costs[i]);
+        }
+        return aggregator;
+    }
+
+    @Benchmark
+    public CostExplorerResponseDTO aggregateToResponse() {
+        return aggregate().toResponse();
+    }
+
+    @Benchmark
+    public CostExplorerResponseDTO aggregateTopNToResponse() {
+        return aggregate().topN(25).toResponse();
+    }
+}
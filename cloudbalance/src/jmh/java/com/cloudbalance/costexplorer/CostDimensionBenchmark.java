@@ -0,0 +1,40 @@
+package com.cloudbalance.costexplorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Field to column lookup, done for the group-by and every filter list of each request
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CostDimensionBenchmark {
+
+    private final String[] fields = {"Service", "AccountID", "Region", "UsageType", "ChargeType", "Unknown"};
+
+    @Benchmark
+    public void columnForField(Blackhole blackhole) {
+        for (String field : fields) {
+            blackhole.consume(CostDimension.fromField(field).getColumn());
+        }
+    }
+
+    @Benchmark
+    public void validateField(Blackhole blackhole) {
+        for (String field : fields) {
+            blackhole.consume(CostDimension.isValidField(field));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.repository.CostStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Normalizing a filter and looking up its SQL template, for customer-sized, admin-sized and MSP-sized account lists
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CostQueryBuilderBenchmark {
+
+    @Param({"5", "300", "2000"})
+    private int accounts;
+
+    private CostQueryBuilder costQueryBuilder;
+    private CostExplorerFilterDTO filter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Rollups disabled, so the registry never touches its JdbcTemplate
+        costQueryBuilder = new CostQueryBuilder(new CostRollupRegistry(null, false, "", 0), new SnowflakeDialectOnly());
+        ReflectionTestUtils.setField(costQueryBuilder, "defaultTopN", 25);
+        ReflectionTestUtils.setField(costQueryBuilder, "maxTopN", 500);
+        ReflectionTestUtils.setField(costQueryBuilder, "accountSetThreshold", 128);
+
+        Random random = new Random(42);
+        List<String> accountIds = new ArrayList<>();
+        for (int a = 0; a < accounts; a++) {
+            accountIds.add(String.valueOf(100000000000L + random.nextInt(1_000_000)));
+        }
+        // Unsorted, as they come from the user's assignments
+        Collections.shuffle(accountIds, random);
+
+        filter = CostExplorerFilterDTO.builder()
+                .groupBy("Service")
+                .accountIds(accountIds)
+                .startDate(LocalDate.of(2024, 1, 1))
+                .endDate(LocalDate.of(2024, 12, 31))
+                .regions(List.of("us-east-1", "eu-west-1", "ap-south-1"))
+                .purchaseOptions(List.of("OnDemand"))
+                .build();
+    }
+
+    @Benchmark
+    public CostQuery buildRanked() {
+        return costQueryBuilder.buildCostDataQuery(filter);
+    }
+
+    @Benchmark
+    public CostQuery buildUnranked() {
+        return costQueryBuilder.buildCostDataQuery(filter, false);
+    }
+
+    // The builder only asks the store for its dialect
+    private static final class SnowflakeDialectOnly implements CostStore {
+
+        @Override
+        public CostSqlDialect getDialect() {
+            return CostSqlDialect.SNOWFLAKE;
+        }
+
+        @Override
+        public void streamCostData(CostQuery query, CostAggregator aggregator) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void streamCostBatch(CostQuery query, RowCallbackHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void streamExport(CostQuery query, RowCallbackHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getDistinctValuesForField(String column) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getAllAccountIds() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Writing the /data response body, from a top-25 chart up to an unranked breakdown
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CostResponseSerializationBenchmark {
+
+    @Param({"26", "500", "5000"})
+    private int groups;
+
+    @Param({"12"})
+    private int periods;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private CostExplorerResponseDTO response;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        CostAggregator aggregator = new CostAggregator();
+        for (int p = 0; p < periods; p++) {
+            for (int g = 0; g < groups; g++) {
+                aggregator.add("service-" + g, (p + 1) + "-2024",
+                        (long) (Math.exp(random.nextGaussian() * 2.0) * 10_000_000L));
+            }
+        }
+        response = aggregator.toResponse();
+    }
+
+    @Benchmark
+    public byte[] serializeJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(response);
+    }
+}
@@ -1,17 +1,25 @@
 
 package com.cloudbalance.config;
 
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.EventListener;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.boot.jdbc.DataSourceBuilder;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
 
 @Configuration
+@Slf4j
 public class DataSourceConfig {
 
     @Value("${spring.datasource.url}")
@@ -26,6 +34,37 @@ public class DataSourceConfig {
     @Value("${spring.datasource.driver-class-name}")
     private String mysqlDriverClassName;
 
+    // ARROW hands result chunks over as column vectors; JSON parses every cell from text
+    @Value("${snowflake.result-format:ARROW}")
+    private String snowflakeResultFormat;
+
+    @Value("${snowflake.pool.interactive.max-size:10}")
+    private int interactiveMaxSize;
+
+    @Value("${snowflake.pool.interactive.min-idle:2}")
+    private int interactiveMinIdle;
+
+    @Value("${snowflake.pool.batch.max-size:3}")
+    private int batchMaxSize;
+
+    @Value("${snowflake.pool.batch.min-idle:1}")
+    private int batchMinIdle;
+
+    @Value("${snowflake.pool.connection-timeout-ms:30000}")
+    private long connectionTimeoutMs;
+
+    @Value("${snowflake.pool.idle-timeout-ms:600000}")
+    private long idleTimeoutMs;
+
+    @Value("${snowflake.pool.max-lifetime-ms:1800000}")
+    private long maxLifetimeMs;
+
+    @Value("${snowflake.pool.keepalive-ms:300000}")
+    private long keepaliveMs;
+
+    @Value("${snowflake.pool.warm-up:true}")
+    private boolean warmUp;
+
     @Primary
     @Bean(name = "dataSource")
     public DataSource primaryDataSource() {
@@ -37,20 +76,70 @@ public class DataSourceConfig {
                 .build();
     }
 
+// Interactive dashboard queries
 @Bean(name = "snowflakeDataSource")
-public DataSource snowflakeDataSource() {
-    String url = "jdbc:snowflake://YFYRZGG-BWB35436.snowflakecomputing.com/?db=aws&schema=cost&warehouse=COMPUTE_WH&CLIENT_RESULT_COLUMN_CASE_INSENSITIVE=true&JDBC_QUERY_RESULT_FORMAT=JSON";
-
-    return DataSourceBuilder.create()
-            .driverClassName("net.snowflake.client.jdbc.SnowflakeDriver")
-            .url(url)
-            .username("ro_user")
-            .password("fRe$her@b00tc@mp2025")
-            .build();
+public HikariDataSource snowflakeDataSource() {
+    return snowflakePool("snowflake-interactive", interactiveMaxSize, interactiveMinIdle);
 }
 
+    // Background refreshes and exports, so they can never take the interactive connections
+    @Bean(name = "snowflakeBatchDataSource")
+    public HikariDataSource snowflakeBatchDataSource() {
+        return snowflakePool("snowflake-batch", batchMaxSize, batchMinIdle);
+    }
+
     @Bean(name = "snowflakeJdbcTemplate")
     public JdbcTemplate snowflakeJdbcTemplate(@Qualifier("snowflakeDataSource") DataSource dataSource) {
         return new JdbcTemplate(dataSource);
     }
-}
\ No newline at end of file
+
+    @Bean(name = "snowflakeBatchJdbcTemplate")
+    public JdbcTemplate snowflakeBatchJdbcTemplate(@Qualifier("snowflakeBatchDataSource") DataSource dataSource) {
+        return new JdbcTemplate(dataSource);
+    }
+
+    // Starts both pools (filling min-idle) before the first user query pays for login and session setup
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpSnowflakePools(ApplicationReadyEvent event) {
+        if (!warmUp) {
+            return;
+        }
+        for (String name : List.of("snowflakeDataSource", "snowflakeBatchDataSource")) {
+            HikariDataSource pool = event.getApplicationContext().getBean(name, HikariDataSource.class);
+            long started = System.currentTimeMillis();
+            try (Connection connection = pool.getConnection()) {
+                connection.isValid(5);
+                log.info("Warmed up Snowflake pool {} in {} ms", pool.getPoolName(), System.currentTimeMillis() - started);
+            } catch (SQLException e) {
+                log.warn("Could not warm up Snowflake pool {}: {}", pool.getPoolName(), e.getMessage());
+            }
+        }
+    }
+
+    // Pool metrics (hikaricp.connections.active/idle/pending/acquire) are bound by Spring Boot per pool name,
+    // which is why the pool is configured with setters and only started on first use
+    private HikariDataSource snowflakePool(String poolName, int maxSize, int minIdle) {
+        if (!snowflakeResultFormat.equals("ARROW") && !snowflakeResultFormat.equals("JSON")) {
+            throw new IllegalArgumentException("snowflake.result-format must be ARROW or JSON, was " + snowflakeResultFormat);
+        }
+        String url = "jdbc:snowflake://YFYRZGG-BWB35436.snowflakecomputing.com/?db=aws&schema=cost&warehouse=COMPUTE_WH&CLIENT_RESULT_COLUMN_CASE_INSENSITIVE=true&JDBC_QUERY_RESULT_FORMAT=" + snowflakeResultFormat;
+
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .driverClassName("net.snowflake.client.jdbc.SnowflakeDriver")
+                .url(url)
+                .username("ro_user")
+                .password("fRe$her@b00tc@mp2025")
+                .build();
+        dataSource.setPoolName(poolName);
+        dataSource.setMaximumPoolSize(maxSize);
+        dataSource.setMinimumIdle(minIdle);
+        dataSource.setConnectionTimeout(connectionTimeoutMs);
+        dataSource.setIdleTimeout(idleTimeoutMs);
+        dataSource.setMaxLifetime(maxLifetimeMs);
+        // Hikari pings idle connections; Snowflake's heartbeat keeps the session token from expiring
+        dataSource.setKeepaliveTime(keepaliveMs);
+        dataSource.addDataSourceProperty("CLIENT_SESSION_KEEP_ALIVE", "true");
+        return dataSource;
+    }
+}
@@ -1,87 +1,279 @@
-
 package com.cloudbalance.controller;
 
+import com.cloudbalance.costexplorer.CostExportFormat;
+import com.cloudbalance.costexplorer.CostQueryCancelledException;
+import com.cloudbalance.costexplorer.CostQueryCanceller;
+import com.cloudbalance.costexplorer.CostQueryContext;
+import com.cloudbalance.dto.ApiResponseDto;
+import com.cloudbalance.dto.ColumnarCostResponseDTO;
 import com.cloudbalance.dto.CostExplorerFilterDTO;
 import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.cloudbalance.dto.CostRollupDTO;
 import com.cloudbalance.exception.BadRequestException;
 import com.cloudbalance.model.User;
+import com.cloudbalance.security.AccountEntitlementCache;
 import com.cloudbalance.service.CostExplorerService;
-import com.cloudbalance.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/cost-explorer")
 public class CostExplorerController {
 
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    private static final long DEFERRED_RESULT_GRACE_MS = 5000;
+    private static final int MAX_BATCH_SIZE = 20;
+    // Names a query slot on the client (e.g. one chart); a newer request for the same slot supersedes the older
+    static final String QUERY_KEY_HEADER = "X-Cost-Query-Key";
+
     private final CostExplorerService costExplorerService;
-    private final UserService userService;
+    private final AccountEntitlementCache accountEntitlementCache;
+    private final CostQueryCanceller costQueryCanceller;
+    private final long exportTimeoutMillis;
 
     @Autowired
-    public CostExplorerController(CostExplorerService costExplorerService, UserService userService) {
+    public CostExplorerController(CostExplorerService costExplorerService,
+                                  AccountEntitlementCache accountEntitlementCache,
+                                  CostQueryCanceller costQueryCanceller,
+                                  @Value("${cost-explorer.export.timeout-ms:3600000}") long exportTimeoutMillis) {
         this.costExplorerService = costExplorerService;
-        this.userService = userService;
+        this.accountEntitlementCache = accountEntitlementCache;
+        this.costQueryCanceller = costQueryCanceller;
+        this.exportTimeoutMillis = exportTimeoutMillis;
     }
 
     @PostMapping("/data")
-    public ResponseEntity<CostExplorerResponseDTO> getCostData(@RequestBody CostExplorerFilterDTO filter) {
+    public DeferredResult<ResponseEntity<CostExplorerResponseDTO>> getCostData(@RequestBody CostExplorerFilterDTO filter,
+                                                                               HttpServletRequest request) {
         // Get current user
-        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        User currentUser = userService.getUserByUsername(auth.getName());
+        Long userId = getCurrentUserId();
 
         // Pass both filter and userId to the service
-        CostExplorerResponseDTO response = costExplorerService.getCostData(filter, currentUser.getId());
-        return ResponseEntity.ok(response);
+        return deferCostQuery(request, userId,
+                () -> ResponseEntity.ok(costExplorerService.getCostData(filter, userId)));
+    }
+
+    // Dashboard widgets in one round trip; responses come back in request order. Widgets that differ only in
+    // groupBy (and topN) share one warehouse scan
+    @PostMapping("/data/batch")
+    public DeferredResult<ResponseEntity<List<CostExplorerResponseDTO>>> getCostDataBatch(
+            @RequestBody List<CostExplorerFilterDTO> filters, HttpServletRequest request) {
+        if (filters == null || filters.isEmpty() || filters.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("A batch must contain between 1 and " + MAX_BATCH_SIZE + " queries");
+        }
+        Long userId = getCurrentUserId();
+
+        return deferCostQuery(request, userId,
+                () -> ResponseEntity.ok(costExplorerService.getCostDataBatch(filters, userId)));
+    }
+
+    // Opt-in compact shape: shared timeUnits plus one dense array per group; CBOR via Accept: application/cbor
+    @PostMapping(value = "/data/columnar", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE})
+    public DeferredResult<ResponseEntity<ColumnarCostResponseDTO>> getColumnarCostData(@RequestBody CostExplorerFilterDTO filter,
+                                                                                       HttpServletRequest request) {
+        Long userId = getCurrentUserId();
+
+        return deferCostQuery(request, userId,
+                () -> ResponseEntity.ok(costExplorerService.getColumnarCostData(filter, userId)));
+    }
+
+    // Full line-level export, streamed as it is read from Snowflake; gzip when the client accepts it and doesn't
+    // opt out. The warehouse statement is cancelled when the client goes away or the export deadline passes.
+    @PostMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportCostData(@RequestBody CostExplorerFilterDTO filter,
+                                                                @RequestParam(defaultValue = "csv") String format,
+                                                                @RequestParam(defaultValue = "true") boolean gzip,
+                                                                HttpServletRequest request) {
+        CostExportFormat exportFormat;
+        try {
+            exportFormat = CostExportFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid export format: " + format + ". Valid formats are: csv, ndjson");
+        }
+        Long userId = getCurrentUserId();
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        boolean compress = gzip && acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+        CostQueryContext context = costQueryCanceller.begin(null, exportTimeoutMillis);
+
+        StreamingResponseBody body = out -> {
+            try {
+                CostQueryCanceller.callWith(context, () -> {
+                    try {
+                        if (compress) {
+                            try (GZIPOutputStream gzipOut = new GZIPOutputStream(out, 64 * 1024)) {
+                                return costExplorerService.exportCostData(filter, userId, exportFormat, gzipOut);
+                            }
+                        }
+                        return costExplorerService.exportCostData(filter, userId, exportFormat, out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                // Writing failed, so the client is gone: stop the warehouse statement as well
+                costQueryCanceller.cancel(context, CostQueryCanceller.DISCONNECTED);
+                throw e.getCause();
+            } finally {
+                costQueryCanceller.end(context);
+            }
+        };
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.getContentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"cost-export." + exportFormat.getExtension() + "\"")
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (compress) {
+            // Content encoding: the client asked for gzip and decompresses the body itself
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.body(body);
     }
 
 @GetMapping("/filter-values/{field}")
 @PreAuthorize("hasAnyRole('ROLE_ADMIN', 'ROLE_READ_ONLY', 'ROLE_CUSTOMER')")
 public ResponseEntity<List<String>> getFilterValues(@PathVariable String field) {
-    // Define valid fields
-    Set<String> validFields = Set.of(
-            "Service", "InstanceType", "AccountID", "UsageType",
-            "Platform", "Region", "UsageTypeGroup", "PurchaseOption",
-            "ApiOperation", "Resource", "AvailabilityZone", "Tenancy", "ChargeType"
-    );
-
-    // Check if field is valid
-    if (!validFields.contains(field)) {
-        throw new BadRequestException("Invalid field: " + field + ". Valid fields are: " + String.join(", ", validFields));
-    }
+    validateFilterField(field);
 
     List<String> values = costExplorerService.getDistinctValuesForField(field);
     return ResponseEntity.ok(values);
 }
 
+    // Values of one field that still co-occur with the filters selected so far
+    @PostMapping("/filter-values/{field}")
+    @PreAuthorize("hasAnyRole('ROLE_ADMIN', 'ROLE_READ_ONLY', 'ROLE_CUSTOMER')")
+    public ResponseEntity<List<String>> getCascadingFilterValues(@PathVariable String field,
+                                                                 @RequestBody CostExplorerFilterDTO filter) {
+        validateFilterField(field);
+
+        Long userId = getCurrentUserId();
+        return ResponseEntity.ok(costExplorerService.getCascadingValuesForField(field, filter, userId));
+    }
+
+    @GetMapping("/filter-values/{field}/search")
+    @PreAuthorize("hasAnyRole('ROLE_ADMIN', 'ROLE_READ_ONLY', 'ROLE_CUSTOMER')")
+    public ResponseEntity<List<String>> searchFilterValues(@PathVariable String field,
+                                                           @RequestParam(name = "q", defaultValue = "") String query,
+                                                           @RequestParam(defaultValue = "50") int limit) {
+        validateFilterField(field);
+        if (limit < 1 || limit > MAX_SEARCH_RESULTS) {
+            throw new BadRequestException("limit must be between 1 and " + MAX_SEARCH_RESULTS);
+        }
+
+        return ResponseEntity.ok(costExplorerService.searchDistinctValuesForField(field, query, limit));
+    }
+
     @GetMapping("/available-accounts")
 //    @PreAuthorize("hasAnyRole('ROLE_ADMIN', 'ROLE_READ_ONLY', 'ROLE_CUSTOMER')")
     public ResponseEntity<List<String>> getAvailableAccounts() {
-        User currentUser = getCurrentUser();
+        Long userId = getCurrentUserId();
 
-        List<String> accounts = costExplorerService.getAccountsForUser(currentUser.getId());
+        List<String> accounts = costExplorerService.getAccountsForUser(userId);
         return ResponseEntity.ok(accounts);
     }
 
 
-    private User getCurrentUser() {
-        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        Object principal = auth.getPrincipal();
+    @DeleteMapping("/cache")
+    @PreAuthorize("hasRole('ROLE_ADMIN')")
+    public ResponseEntity<ApiResponseDto<Integer>> invalidateCache(
+            @RequestParam(required = false) String accountId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate) {
+        int removed = costExplorerService.invalidateCachedCostData(accountId, startDate, endDate);
+        return ResponseEntity.ok(ApiResponseDto.success("Cost data cache invalidated", removed));
+    }
+
+    @GetMapping("/rollups")
+    @PreAuthorize("hasRole('ROLE_ADMIN')")
+    public ResponseEntity<ApiResponseDto<List<CostRollupDTO>>> getRollups() {
+        return ResponseEntity.ok(ApiResponseDto.success("Cost rollups retrieved", costExplorerService.getCostRollups()));
+    }
+
+    @PostMapping("/rollups")
+    @PreAuthorize("hasRole('ROLE_ADMIN')")
+    public ResponseEntity<ApiResponseDto<CostRollupDTO>> registerRollup(@RequestBody CostRollupDTO rollup) {
+        return ResponseEntity.ok(ApiResponseDto.success("Cost rollup registered", costExplorerService.registerCostRollup(rollup)));
+    }
 
-        if (principal instanceof User) {
-            return (User) principal;
-        } else {
-            String username = auth.getName();
-            return userService.getUserByUsername(username);
+    @DeleteMapping("/rollups/{name}")
+    @PreAuthorize("hasRole('ROLE_ADMIN')")
+    public ResponseEntity<ApiResponseDto<Void>> unregisterRollup(@PathVariable String name) {
+        costExplorerService.unregisterCostRollup(name);
+        return ResponseEntity.ok(ApiResponseDto.success("Cost rollup unregistered", null));
+    }
+
+    // Runs the cost query off the Tomcat thread under a deadline. A newer request from the same user to the same
+    // endpoint with the same X-Cost-Query-Key supersedes it, and a client disconnect cancels it, both down to the
+    // warehouse statement. Requests without the header are never superseded.
+    private <T> DeferredResult<T> deferCostQuery(HttpServletRequest request, Long userId, Supplier<T> query) {
+        String queryKey = request.getHeader(QUERY_KEY_HEADER);
+        String supersedeKey = queryKey != null && !queryKey.isBlank()
+                ? userId + ":" + request.getRequestURI() + ":" + queryKey
+                : null;
+        CostQueryContext context = costQueryCanceller.begin(supersedeKey);
+
+        // Statements time out at the deadline; this is the backstop if the driver doesn't give up in time
+        DeferredResult<T> result = new DeferredResult<>(costQueryCanceller.getTimeoutMillis() + DEFERRED_RESULT_GRACE_MS);
+        result.onTimeout(() -> {
+            costQueryCanceller.cancel(context, CostQueryCanceller.DEADLINE);
+            result.setErrorResult(new CostQueryCancelledException(CostQueryCanceller.DEADLINE, null));
+        });
+        result.onError(error -> costQueryCanceller.cancel(context, CostQueryCanceller.DISCONNECTED));
+        result.onCompletion(() -> costQueryCanceller.end(context));
+
+        costQueryCanceller.submit(context, query).whenComplete((value, error) -> {
+            if (error != null) {
+                result.setErrorResult(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error);
+            } else {
+                result.setResult(value);
+            }
+        });
+        return result;
+    }
+
+    private void validateFilterField(String field) {
+        // Define valid fields
+        Set<String> validFields = Set.of(
+                "Service", "InstanceType", "AccountID", "UsageType",
+                "Platform", "Region", "UsageTypeGroup", "PurchaseOption",
+                "ApiOperation", "Resource", "AvailabilityZone", "Tenancy", "ChargeType"
+        );
+
+        // Check if field is valid
+        if (!validFields.contains(field)) {
+            throw new BadRequestException("Invalid field: " + field + ". Valid fields are: " + String.join(", ", validFields));
         }
     }
 
+    // Resolved from the entitlement cache, so cost requests don't look the user up in MySQL
+    private Long getCurrentUserId() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        return accountEntitlementCache.getUserId(auth.getName());
+    }
+
     // Helper method to check if user has CUSTOMER role
     private boolean isCustomerRole(User user) {
         return user != null && user.getRole() != null && "CUSTOMER".equals(user.getRole().getName());
@@ -0,0 +1,53 @@
+package com.cloudbalance.costexplorer;
+
+import org.springframework.jdbc.core.SqlTypeValue;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+// A whole account filter bound as one parameter: a JSON array of numbers for Snowflake (expanded with FLATTEN
+// and compared as NUMBER) or a BIGINT array for the local store (= ANY). toString is the JSON text, so cache
+// keys stay stable.
+public final class AccountIdSet implements SqlTypeValue {
+
+    private final List<Long> accountIds;
+    private final boolean sqlArray;
+    private final String json;
+
+    AccountIdSet(List<Long> accountIds, boolean sqlArray) {
+        this.accountIds = List.copyOf(accountIds);
+        this.sqlArray = sqlArray;
+        this.json = toJson(this.accountIds);
+    }
+
+    public List<Long> getAccountIds() {
+        return accountIds;
+    }
+
+    @Override
+    public void setTypeValue(PreparedStatement ps, int paramIndex, int sqlType, String typeName) throws SQLException {
+        if (sqlArray) {
+            ps.setObject(paramIndex, accountIds.toArray(new Long[0]));
+        } else {
+            ps.setString(paramIndex, json);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    // Numbers only, so nothing needs escaping
+    private static String toJson(List<Long> values) {
+        StringBuilder json = new StringBuilder(values.size() * 14).append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(values.get(i));
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,58 @@
+package com.cloudbalance.costexplorer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// LINKEDACCOUNTID is numeric in the warehouse, so "0123" and "123" are the same account. Anything that compares
+// account ids as text (cube dictionaries, batch demultiplexing, entitlements) goes through normalize().
+public final class AccountIds {
+
+    // Longer ids don't fit the warehouse's number type; AWS account ids have 12 digits
+    private static final int MAX_DIGITS = 18;
+
+    private AccountIds() {
+    }
+
+    // Digits only, after trimming
+    public static boolean isValid(String accountId) {
+        if (accountId == null) {
+            return false;
+        }
+        String trimmed = accountId.trim();
+        if (trimmed.isEmpty() || trimmed.length() > MAX_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (trimmed.charAt(i) < '0' || trimmed.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The id as the warehouse returns it: trimmed, without leading zeros. Null and invalid ids are kept as they are.
+    public static String normalize(String accountId) {
+        if (!isValid(accountId)) {
+            return accountId;
+        }
+        String trimmed = accountId.trim();
+        int start = 0;
+        while (start < trimmed.length() - 1 && trimmed.charAt(start) == '0') {
+            start++;
+        }
+        return trimmed.substring(start);
+    }
+
+    public static List<String> normalize(List<String> accountIds) {
+        List<String> normalized = new ArrayList<>(accountIds.size());
+        for (String accountId : accountIds) {
+            normalized.add(normalize(accountId));
+        }
+        return normalized;
+    }
+
+    // The value bound for LINKEDACCOUNTID; the id must be valid
+    public static long toNumber(String accountId) {
+        return Long.parseLong(accountId.trim());
+    }
+}
@@ -0,0 +1,316 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// Every distinct combination of usage month and dimension values is a cell; each value keeps a compressed bitmap
+// of the cells it appears in. Values that still co-occur with a filter, within its date range by month, are found
+// by bitmap intersection. When the combinations would exceed max-cells, the columns with the most values are left
+// out: filters on them are ignored (a superset of the cascading values) and their own dropdowns are not answered here.
+// The columns are picked from estimated combination counts before the index is built, so the build is one scan.
+@Component
+@Slf4j
+public class CascadingFilterIndex {
+
+    // Fields sharing a column (Service and Resource) share one set of bitmaps
+    private static final List<String> COLUMNS = Arrays.stream(CostDimension.values())
+            .map(CostDimension::getColumn)
+            .distinct()
+            .toList();
+    private static final String MONTH_SQL = "MYCLOUD_STARTYEAR * 100 + MYCLOUD_STARTMONTH";
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(24);
+    // APPROX_COUNT_DISTINCT is within a few percent; leave room so the build scan rarely hits the limit
+    private static final double ESTIMATE_HEADROOM = 0.9;
+
+    private final JdbcTemplate snowflakeBatchJdbcTemplate;
+    private final FilterValueDictionary filterValueDictionary;
+    private final boolean enabled;
+    private final int lookbackMonths;
+    private final int maxCells;
+    private final long refreshIntervalMillis;
+
+    private volatile Snapshot snapshot;
+    // Refreshes run on the scheduler thread only
+    private int failures;
+    private long nextAttemptAt;
+
+    public CascadingFilterIndex(@Qualifier("snowflakeBatchJdbcTemplate") JdbcTemplate snowflakeBatchJdbcTemplate,
+                                FilterValueDictionary filterValueDictionary,
+                                @Value("${cost-explorer.filter-index.enabled:true}") boolean enabled,
+                                @Value("${cost-explorer.filter-index.lookback-months:13}") int lookbackMonths,
+                                @Value("${cost-explorer.filter-index.max-cells:5000000}") int maxCells,
+                                @Value("${cost-explorer.filter-index.refresh-interval-ms:3600000}") long refreshIntervalMillis) {
+        this.snowflakeBatchJdbcTemplate = snowflakeBatchJdbcTemplate;
+        this.filterValueDictionary = filterValueDictionary;
+        this.enabled = enabled;
+        this.lookbackMonths = lookbackMonths;
+        this.maxCells = maxCells;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    @Scheduled(initialDelayString = "${cost-explorer.filter-index.initial-delay-ms:0}",
+            fixedDelayString = "${cost-explorer.filter-index.refresh-interval-ms:3600000}")
+    public void refresh() {
+        if (!enabled || System.currentTimeMillis() < nextAttemptAt) {
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        String since = LocalDate.now().minusMonths(lookbackMonths).withDayOfMonth(1).toString();
+        List<String> columns;
+        Snapshot built;
+        try {
+            columns = plannedColumns(since);
+            while (true) {
+                SnapshotBuilder builder = new SnapshotBuilder(columns);
+                if (load(builder, since)) {
+                    built = builder.build();
+                    break;
+                }
+                if (columns.isEmpty()) {
+                    throw new IllegalStateException("more than " + maxCells + " cells by month alone");
+                }
+                // Only when the estimate fell short: the planned columns are narrowest first
+                String dropped = columns.remove(columns.size() - 1);
+                log.warn("Cascading filter index exceeds {} cells, leaving out {}", maxCells, dropped);
+            }
+        } catch (DataAccessException | IllegalStateException e) {
+            // Back off, so a failing load doesn't rescan the table every interval
+            failures++;
+            long backoff = Math.min(refreshIntervalMillis << Math.min(failures, 16), MAX_BACKOFF_MILLIS);
+            nextAttemptAt = System.currentTimeMillis() + backoff;
+            log.error("Cascading filter index refresh failed, keeping previous index; next attempt in {} ms: {}",
+                    backoff, e.getMessage());
+            return;
+        }
+
+        failures = 0;
+        nextAttemptAt = 0;
+        snapshot = built;
+        log.info("Cascading filter index refreshed: {} cells over {} of {} columns in {} ms",
+                built.cellCount, columns.size(), COLUMNS.size(), System.currentTimeMillis() - started);
+    }
+
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public LocalDateTime getLoadedAt() {
+        Snapshot current = snapshot;
+        return current != null ? current.loadedAt : null;
+    }
+
+    // Values of the column that co-occur with every other selected filter in the filter's months; the column's own
+    // filter is ignored. Null when the index isn't loaded or leaves the column out.
+    public List<String> getValues(String column, CostExplorerFilterDTO filter) {
+        Snapshot current = snapshot;
+        int target = current != null ? current.columnNames.indexOf(column) : -1;
+        if (target < 0) {
+            return null;
+        }
+
+        RoaringBitmap cells = null;
+        if (filter.getStartDate() != null && filter.getEndDate() != null) {
+            cells = new RoaringBitmap();
+            YearMonth last = YearMonth.from(filter.getEndDate());
+            for (YearMonth month = YearMonth.from(filter.getStartDate()); !month.isAfter(last); month = month.plusMonths(1)) {
+                RoaringBitmap monthCells = current.months.get(month.getYear() * 100 + month.getMonthValue());
+                if (monthCells != null) {
+                    cells.or(monthCells);
+                }
+            }
+            if (cells.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+
+        for (CostDimension dimension : CostDimension.values()) {
+            int c = current.columnNames.indexOf(dimension.getColumn());
+            List<String> selected = dimension.getFilterValues(filter);
+            if (c < 0 || c == target || selected.isEmpty()) {
+                continue;
+            }
+
+            RoaringBitmap matching = new RoaringBitmap();
+            for (String value : selected) {
+                RoaringBitmap valueCells = current.columns[c].get(value);
+                if (valueCells != null) {
+                    matching.or(valueCells);
+                }
+            }
+            cells = cells == null ? matching : RoaringBitmap.and(cells, matching);
+            if (cells.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+
+        List<String> values = new ArrayList<>();
+        for (Map.Entry<String, RoaringBitmap> entry : current.columns[target].entrySet()) {
+            if (cells == null || RoaringBitmap.intersects(entry.getValue(), cells)) {
+                values.add(entry.getKey());
+            }
+        }
+        values.sort(Comparator.nullsLast(Comparator.naturalOrder()));
+        return values;
+    }
+
+    // Columns narrowest first, as many as fit in maxCells: one statement estimates the cells of every prefix.
+    // HASH keeps rows with null values, which a multi-argument count would skip.
+    private List<String> plannedColumns(String since) {
+        Map<String, Long> valueCounts = valueCounts(since);
+        List<String> byWidth = new ArrayList<>(COLUMNS);
+        byWidth.sort(Comparator.comparingLong(valueCounts::get));
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int k = byWidth.size(); k >= 0; k--) {
+            List<String> prefix = byWidth.subList(0, k);
+            sql.append(k < byWidth.size() ? ", " : "")
+                    .append("APPROX_COUNT_DISTINCT(HASH(").append(MONTH_SQL)
+                    .append(prefix.isEmpty() ? "" : ", " + String.join(", ", prefix)).append("))");
+        }
+        sql.append(" FROM cost_explorer WHERE USAGESTARTDATE >= ?");
+        long[] estimates = new long[byWidth.size() + 1];
+        snowflakeBatchJdbcTemplate.query(sql.toString(), rs -> {
+            for (int k = 0; k <= byWidth.size(); k++) {
+                estimates[k] = rs.getLong(byWidth.size() - k + 1);
+            }
+        }, since);
+
+        for (int k = byWidth.size(); k >= 0; k--) {
+            if (estimates[k] <= maxCells * ESTIMATE_HEADROOM) {
+                if (k < byWidth.size()) {
+                    log.warn("Cascading filter index would exceed {} cells (~{}), leaving out {}",
+                            maxCells, estimates[byWidth.size()], byWidth.subList(k, byWidth.size()));
+                }
+                return new ArrayList<>(byWidth.subList(0, k));
+            }
+        }
+        throw new IllegalStateException("more than " + maxCells + " cells by month alone");
+    }
+
+    // Distinct values per column: from the filter-value dictionary, or one estimate before its first load
+    private Map<String, Long> valueCounts(String since) {
+        Map<String, Long> counts = new HashMap<>();
+        if (filterValueDictionary.getValueCount(COLUMNS.get(0)) >= 0) {
+            for (String column : COLUMNS) {
+                counts.put(column, (long) filterValueDictionary.getValueCount(column));
+            }
+            return counts;
+        }
+        String sql = COLUMNS.stream()
+                .map(column -> "APPROX_COUNT_DISTINCT(" + column + ")")
+                .collect(Collectors.joining(", ", "SELECT ", " FROM cost_explorer WHERE USAGESTARTDATE >= ?"));
+        snowflakeBatchJdbcTemplate.query(sql, rs -> {
+            for (int c = 0; c < COLUMNS.size(); c++) {
+                counts.put(COLUMNS.get(c), rs.getLong(c + 1));
+            }
+        }, since);
+        return counts;
+    }
+
+    // False when the combinations don't fit in maxCells
+    private boolean load(SnapshotBuilder builder, String since) {
+        try {
+            snowflakeBatchJdbcTemplate.query(refreshSql(builder.columnNames), rs -> {
+                if (builder.cellCount == maxCells) {
+                    throw new CellLimitExceededException();
+                }
+                builder.addMonth(rs.getInt(1));
+                for (int c = 0; c < builder.columnNames.size(); c++) {
+                    builder.add(c, rs.getString(c + 2));
+                }
+                builder.cellCount++;
+            }, since);
+            return true;
+        } catch (CellLimitExceededException e) {
+            return false;
+        }
+    }
+
+    // One row past the limit is enough to tell that the combinations don't fit
+    private String refreshSql(List<String> columnNames) {
+        String columns = columnNames.isEmpty() ? "" : ", " + String.join(", ", columnNames);
+        return "SELECT " + MONTH_SQL + " AS usage_month" + columns + " FROM cost_explorer WHERE USAGESTARTDATE >= ? "
+                + "GROUP BY usage_month" + columns + " LIMIT " + (maxCells + 1);
+    }
+
+    private static final class CellLimitExceededException extends RuntimeException {
+        private CellLimitExceededException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class SnapshotBuilder {
+        private final List<String> columnNames;
+        private final List<Map<String, RoaringBitmap>> columns = new ArrayList<>();
+        private final Map<Integer, RoaringBitmap> months = new HashMap<>();
+        private int cellCount;
+
+        private SnapshotBuilder(List<String> columnNames) {
+            this.columnNames = List.copyOf(columnNames);
+            for (int c = 0; c < columnNames.size(); c++) {
+                columns.add(new HashMap<>());
+            }
+        }
+
+        private void addMonth(int month) {
+            months.computeIfAbsent(month, m -> new RoaringBitmap()).add(cellCount);
+        }
+
+        private void add(int column, String value) {
+            // Cells arrive in increasing order, so bitmaps are appended to at the end
+            columns.get(column).computeIfAbsent(value, v -> new RoaringBitmap()).add(cellCount);
+        }
+
+        private Snapshot build() {
+            @SuppressWarnings("unchecked")
+            Map<String, RoaringBitmap>[] built = new Map[columnNames.size()];
+            for (int c = 0; c < built.length; c++) {
+                for (RoaringBitmap bitmap : columns.get(c).values()) {
+                    bitmap.runOptimize();
+                }
+                built[c] = columns.get(c);
+            }
+            for (RoaringBitmap bitmap : months.values()) {
+                bitmap.runOptimize();
+            }
+            return new Snapshot(columnNames, built, months, cellCount);
+        }
+    }
+
+    private static final class Snapshot {
+        private final List<String> columnNames;
+        private final Map<String, RoaringBitmap>[] columns;
+        // yyyyMM -> cells
+        private final Map<Integer, RoaringBitmap> months;
+        private final int cellCount;
+        private final LocalDateTime loadedAt = LocalDateTime.now();
+
+        private Snapshot(List<String> columnNames, Map<String, RoaringBitmap>[] columns,
+                         Map<Integer, RoaringBitmap> months, int cellCount) {
+            this.columnNames = columnNames;
+            this.columns = columns;
+            this.months = months;
+            this.cellCount = cellCount;
+        }
+    }
+}
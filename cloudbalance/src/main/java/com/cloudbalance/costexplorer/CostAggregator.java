@@ -0,0 +1,385 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.ColumnarCostResponseDTO;
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.cloudbalance.dto.CostGroupDTO;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Streams group_key x time_period x total_cost_micros rows into a dense group-by-period matrix of longs.
+// Columns are read by position: 1 = group_key, 2 = time_period, 3 = total_cost_micros. The cost goes through
+// getLong, which the Arrow result format serves straight from its column vectors without boxing.
+// Sums are exact and overflow-checked; BigDecimal is only created in toResponse, toColumnar keeps the micros.
+// Ranked queries add 4 = grouping_level and 5 = account_id (see levelledRows): besides the cells they return the
+// group, period, grand and account totals rounded once by the warehouse, which then replace the totals summed here.
+public class CostAggregator implements RowCallbackHandler {
+
+    static final String OTHER_GROUP = "Other";
+
+    // grouping_level values of ranked queries
+    static final int CELL = 0;
+    static final int GROUP_TOTAL = 1;
+    static final int PERIOD_TOTAL = 2;
+    static final int GRAND_TOTAL = 3;
+    static final int ACCOUNT_TOTAL = 4;
+
+    private static final int DEFAULT_GROUPS = 64;
+    private static final int DEFAULT_PERIODS = 16;
+
+    private final Map<String, Integer> groupIndex;
+    private final Map<String, Integer> periodIndex = new HashMap<>();
+    private String[] groupKeys;
+    private String[] periods = new String[DEFAULT_PERIODS];
+    private int groupCount;
+    private int periodCount;
+    private int periodCapacity = DEFAULT_PERIODS;
+
+    // values[group * periodCapacity + period], in micro-units (CostMicros)
+    private long[] values;
+    private boolean[] present;
+    private int rowCount;
+    // Some partitions of the query are missing
+    private boolean partial;
+
+    // Totals returned by the warehouse, when the query had grouping levels
+    private final Map<String, Long> groupTotals = new HashMap<>();
+    private final Map<String, Long> periodTotals = new HashMap<>();
+    private Long grandTotal;
+    private Map<String, Long> accountTotals;
+
+    public CostAggregator() {
+        this(DEFAULT_GROUPS);
+    }
+
+    public CostAggregator(int expectedGroups) {
+        int capacity = Math.max(expectedGroups, 1);
+        this.groupIndex = new HashMap<>(capacity * 4 / 3 + 1);
+        this.groupKeys = new String[capacity];
+        this.values = new long[capacity * periodCapacity];
+        this.present = new boolean[capacity * periodCapacity];
+    }
+
+    @Override
+    public void processRow(ResultSet rs) throws SQLException {
+        add(rs.getString(1), rs.getString(2), rs.getLong(3));
+    }
+
+    // Handler for ranked queries (CostQuery.isLevelled), whose rows carry a grouping level
+    public RowCallbackHandler levelledRows() {
+        return this::processLevelledRow;
+    }
+
+    private void processLevelledRow(ResultSet rs) throws SQLException {
+        long costMicros = rs.getLong(3);
+        switch (rs.getInt(4)) {
+            case CELL -> add(rs.getString(1), rs.getString(2), costMicros);
+            case GROUP_TOTAL -> groupTotals.merge(groupKey(rs.getString(1)), costMicros, Math::addExact);
+            case PERIOD_TOTAL -> periodTotals.put(rs.getString(2), costMicros);
+            case GRAND_TOTAL -> grandTotal = costMicros;
+            case ACCOUNT_TOTAL -> {
+                if (accountTotals == null) {
+                    accountTotals = new HashMap<>();
+                }
+                accountTotals.put(rs.getString(5), costMicros);
+            }
+            default -> throw new SQLException("Unknown cost grouping level " + rs.getInt(4));
+        }
+    }
+
+    public void add(String groupKey, String timePeriod, long costMicros) {
+        int group = groupSlot(groupKey(groupKey));
+        int period = periodSlot(timePeriod);
+        int cell = group * periodCapacity + period;
+        values[cell] = Math.addExact(values[cell], costMicros);
+        present[cell] = true;
+        rowCount++;
+    }
+
+    // Warehouse totals only describe a single query, so merged results are totalled from the cells
+    public void merge(CostAggregator other) {
+        other.forEachCell(this::add);
+        partial |= other.partial;
+        clearTotals();
+    }
+
+    public void markPartial() {
+        partial = true;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void forEachCell(CellConsumer consumer) {
+        for (int g = 0; g < groupCount; g++) {
+            for (int p = 0; p < periodCount; p++) {
+                int cell = g * periodCapacity + p;
+                if (present[cell]) {
+                    consumer.accept(groupKeys[g], periods[p], values[cell]);
+                }
+            }
+        }
+    }
+
+    // Same ranking as the SQL top-N: keep the N costliest groups over the whole range, roll the rest into "Other"
+    public CostAggregator topN(int n) {
+        if (n <= 0 || groupCount <= n) {
+            return this;
+        }
+
+        long[] rangeTotals = new long[groupCount];
+        Integer[] order = new Integer[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            order[g] = g;
+            for (int p = 0; p < periodCount; p++) {
+                rangeTotals[g] = Math.addExact(rangeTotals[g], values[g * periodCapacity + p]);
+            }
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingLong(g -> rangeTotals[g]).reversed()
+                .thenComparing(g -> groupKeys[g]));
+
+        boolean[] kept = new boolean[groupCount];
+        for (int i = 0; i < n; i++) {
+            kept[order[i]] = true;
+        }
+
+        // Period, grand and account totals don't depend on the ranking; group totals are re-summed
+        CostAggregator ranked = new CostAggregator(n + 1);
+        ranked.partial = partial;
+        ranked.periodTotals.putAll(periodTotals);
+        ranked.grandTotal = grandTotal;
+        ranked.accountTotals = accountTotals;
+        for (int g = 0; g < groupCount; g++) {
+            String key = kept[g] ? groupKeys[g] : OTHER_GROUP;
+            for (int p = 0; p < periodCount; p++) {
+                int cell = g * periodCapacity + p;
+                if (present[cell]) {
+                    ranked.add(key, periods[p], values[cell]);
+                }
+            }
+        }
+        return ranked;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    public int getPeriodCount() {
+        return periodCount;
+    }
+
+    public int getAccountCount() {
+        return accountTotals != null ? accountTotals.size() : 0;
+    }
+
+    public CostExplorerResponseDTO toResponse() {
+        Integer[] periodOrder = periodOrder();
+        List<String> timeUnits = new ArrayList<>(periodCount);
+        long[] periodSums = new long[periodCount];
+        for (Integer p : periodOrder) {
+            timeUnits.add(periods[p]);
+        }
+
+        List<CostGroupDTO> groups = new ArrayList<>(groupCount);
+        for (int g = 0; g < groupCount; g++) {
+            Map<String, BigDecimal> groupValues = new LinkedHashMap<>();
+            long groupSum = 0;
+            for (Integer p : periodOrder) {
+                int cell = g * periodCapacity + p;
+                if (present[cell]) {
+                    groupValues.put(periods[p], CostMicros.toDecimal(values[cell]));
+                    groupSum = Math.addExact(groupSum, values[cell]);
+                    periodSums[p] = Math.addExact(periodSums[p], values[cell]);
+                }
+            }
+            groups.add(CostGroupDTO.builder()
+                    .key(groupKeys[g])
+                    .values(groupValues)
+                    .total(CostMicros.toDecimal(groupTotal(g, groupSum)))
+                    .build());
+        }
+
+        Map<String, BigDecimal> totals = new LinkedHashMap<>();
+        long grandSum = 0;
+        for (Integer p : periodOrder) {
+            grandSum = Math.addExact(grandSum, periodSums[p]);
+            totals.put(periods[p], CostMicros.toDecimal(periodTotal(p, periodSums[p])));
+        }
+
+        Map<String, BigDecimal> accounts = null;
+        if (accountTotals != null) {
+            accounts = new LinkedHashMap<>();
+            for (Map.Entry<String, Long> entry : accountsByCost()) {
+                accounts.put(entry.getKey(), CostMicros.toDecimal(entry.getValue()));
+            }
+        }
+
+        return CostExplorerResponseDTO.builder()
+                .timeUnits(timeUnits)
+                .groups(groups)
+                .totals(totals)
+                .grandTotal(CostMicros.toDecimal(grandTotal != null ? grandTotal : grandSum))
+                .accountTotals(accounts)
+                .totalRecords(rowCount)
+                .partial(partial)
+                .build();
+    }
+
+    // Same figures as toResponse, straight from the matrix in micros
+    public ColumnarCostResponseDTO toColumnar() {
+        Integer[] periodOrder = periodOrder();
+        List<String> timeUnits = new ArrayList<>(periodCount);
+        for (Integer p : periodOrder) {
+            timeUnits.add(periods[p]);
+        }
+
+        List<String> keys = new ArrayList<>(groupCount);
+        long[][] series = new long[groupCount][periodCount];
+        long[] groupSums = new long[groupCount];
+        long[] periodSums = new long[periodCount];
+        for (int g = 0; g < groupCount; g++) {
+            keys.add(groupKeys[g]);
+            long groupSum = 0;
+            for (int i = 0; i < periodCount; i++) {
+                int cell = g * periodCapacity + periodOrder[i];
+                if (present[cell]) {
+                    series[g][i] = values[cell];
+                    groupSum = Math.addExact(groupSum, values[cell]);
+                    periodSums[i] = Math.addExact(periodSums[i], values[cell]);
+                }
+            }
+            groupSums[g] = groupTotal(g, groupSum);
+        }
+
+        long[] totals = new long[periodCount];
+        long grandSum = 0;
+        for (int i = 0; i < periodCount; i++) {
+            grandSum = Math.addExact(grandSum, periodSums[i]);
+            totals[i] = periodTotal(periodOrder[i], periodSums[i]);
+        }
+
+        Map<String, Long> accounts = null;
+        if (accountTotals != null) {
+            accounts = new LinkedHashMap<>();
+            for (Map.Entry<String, Long> entry : accountsByCost()) {
+                accounts.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return ColumnarCostResponseDTO.builder()
+                .timeUnits(timeUnits)
+                .keys(keys)
+                .scale(CostMicros.SCALE)
+                .values(series)
+                .groupTotals(groupSums)
+                .totals(totals)
+                .grandTotal(grandTotal != null ? grandTotal : grandSum)
+                .accountTotals(accounts)
+                .totalRecords(rowCount)
+                .partial(partial)
+                .build();
+    }
+
+    // Time periods in the same (string) order as before
+    private Integer[] periodOrder() {
+        Integer[] periodOrder = new Integer[periodCount];
+        for (int p = 0; p < periodCount; p++) {
+            periodOrder[p] = p;
+        }
+        Comparator<String> byPeriod = Comparator.nullsLast(Comparator.naturalOrder());
+        Arrays.sort(periodOrder, (a, b) -> byPeriod.compare(periods[a], periods[b]));
+        return periodOrder;
+    }
+
+    // Warehouse totals win over the sums of the (rounded) cells when the query returned them
+    private long groupTotal(int group, long groupSum) {
+        return groupTotals.getOrDefault(groupKeys[group], groupSum);
+    }
+
+    private long periodTotal(int period, long periodSum) {
+        return periodTotals.getOrDefault(periods[period], periodSum);
+    }
+
+    // Costliest accounts first
+    private List<Map.Entry<String, Long>> accountsByCost() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(accountTotals.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return entries;
+    }
+
+    private void clearTotals() {
+        groupTotals.clear();
+        periodTotals.clear();
+        grandTotal = null;
+        accountTotals = null;
+    }
+
+    private static String groupKey(String groupKey) {
+        return groupKey != null ? groupKey : OTHER_GROUP;
+    }
+
+    private int groupSlot(String groupKey) {
+        Integer slot = groupIndex.get(groupKey);
+        if (slot != null) {
+            return slot;
+        }
+        if (groupCount == groupKeys.length) {
+            int capacity = groupCount * 2;
+            groupKeys = Arrays.copyOf(groupKeys, capacity);
+            values = Arrays.copyOf(values, capacity * periodCapacity);
+            present = Arrays.copyOf(present, capacity * periodCapacity);
+        }
+        groupKeys[groupCount] = groupKey;
+        groupIndex.put(groupKey, groupCount);
+        return groupCount++;
+    }
+
+    private int periodSlot(String timePeriod) {
+        Integer slot = periodIndex.get(timePeriod);
+        if (slot != null) {
+            return slot;
+        }
+        if (periodCount == periodCapacity) {
+            growPeriods();
+        }
+        periods[periodCount] = timePeriod;
+        periodIndex.put(timePeriod, periodCount);
+        return periodCount++;
+    }
+
+    // Re-lay the matrix with a wider period stride; periods are few, so this is rare
+    private void growPeriods() {
+        int newCapacity = periodCapacity * 2;
+        int groupCapacity = groupKeys.length;
+        long[] newValues = new long[groupCapacity * newCapacity];
+        boolean[] newPresent = new boolean[groupCapacity * newCapacity];
+        for (int g = 0; g < groupCount; g++) {
+            System.arraycopy(values, g * periodCapacity, newValues, g * newCapacity, periodCount);
+            System.arraycopy(present, g * periodCapacity, newPresent, g * newCapacity, periodCount);
+        }
+        values = newValues;
+        present = newPresent;
+        periods = Arrays.copyOf(periods, newCapacity);
+        periodCapacity = newCapacity;
+    }
+
+    @FunctionalInterface
+    public interface CellConsumer {
+        void accept(String groupKey, String timePeriod, long costMicros);
+    }
+}
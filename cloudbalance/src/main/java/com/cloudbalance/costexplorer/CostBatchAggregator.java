@@ -0,0 +1,41 @@
+package com.cloudbalance.costexplorer;
+
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits the rows of a combined batch query (CostQueryBuilder.buildBatchQuery) into one CostAggregator per
+// group-by column. Columns by position: 1 = group_index, 2 = group_key, 3 = time_period, 4 = total_cost_micros.
+public class CostBatchAggregator implements RowCallbackHandler {
+
+    private final List<String> columns = new ArrayList<>();
+    private final List<CostAggregator> aggregators = new ArrayList<>();
+
+    // Dimensions sharing a column (Service and Resource) share one aggregator
+    public CostBatchAggregator(List<CostDimension> groupBys) {
+        for (CostDimension groupBy : groupBys) {
+            if (!columns.contains(groupBy.getColumn())) {
+                columns.add(groupBy.getColumn());
+                aggregators.add(new CostAggregator());
+            }
+        }
+    }
+
+    // group_index i in the query refers to getColumns().get(i)
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    @Override
+    public void processRow(ResultSet rs) throws SQLException {
+        aggregators.get(rs.getInt(1)).add(rs.getString(2), rs.getString(3), rs.getLong(4));
+    }
+
+    // Every group_key x time_period cell for the dimension; rank with topN
+    public CostAggregator get(CostDimension groupBy) {
+        return aggregators.get(columns.indexOf(groupBy.getColumn()));
+    }
+}
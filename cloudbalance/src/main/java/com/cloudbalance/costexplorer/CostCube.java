@@ -0,0 +1,437 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// In-memory month x account x service x region x usage type x instance type x pricing type cost aggregates.
+// Dimension values are dictionary-encoded into int columns; measures are primitive arrays. Cells are sorted by
+// month, then account: a query reads the cells of its months, and only its accounts' cells within them. There's no
+// warehouse round trip, but the work still grows with those cells.
+@Component
+@Slf4j
+public class CostCube {
+
+    static final List<CostDimension> DIMENSIONS = List.of(
+            CostDimension.ACCOUNT_ID,
+            CostDimension.SERVICE,
+            CostDimension.REGION,
+            CostDimension.USAGE_TYPE,
+            CostDimension.INSTANCE_TYPE,
+            CostDimension.PURCHASE_OPTION);
+    private static final int ACCOUNT_DIMENSION = DIMENSIONS.indexOf(CostDimension.ACCOUNT_ID);
+
+    private static final int RESULT_LIMIT = 1000;
+
+    private final JdbcTemplate snowflakeBatchJdbcTemplate;
+    private final boolean enabled;
+
+    private volatile Snapshot snapshot;
+
+    public CostCube(@Qualifier("snowflakeBatchJdbcTemplate") JdbcTemplate snowflakeBatchJdbcTemplate,
+                    @Value("${cost-explorer.cube.enabled:false}") boolean enabled) {
+        this.snowflakeBatchJdbcTemplate = snowflakeBatchJdbcTemplate;
+        this.enabled = enabled;
+    }
+
+    @Scheduled(initialDelayString = "${cost-explorer.cube.initial-delay-ms:0}",
+            fixedDelayString = "${cost-explorer.cube.refresh-interval-ms:3600000}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        SnapshotBuilder builder = new SnapshotBuilder();
+        try {
+            snowflakeBatchJdbcTemplate.query(refreshSql(), rs -> {
+                int[] codes = new int[DIMENSIONS.size()];
+                for (int d = 0; d < codes.length; d++) {
+                    String value = rs.getString(d + 4);
+                    codes[d] = builder.dictionaries[d].encode(
+                            DIMENSIONS.get(d) == CostDimension.ACCOUNT_ID ? AccountIds.normalize(value) : value);
+                }
+                YearMonth month = toYearMonth(rs.getInt(1), rs.getInt(2));
+                builder.add(rs.getString(3), month, codes, rs.getLong(DIMENSIONS.size() + 4));
+            });
+        } catch (DataAccessException e) {
+            log.error("Cost cube refresh failed, keeping previous snapshot: {}", e.getMessage());
+            return;
+        }
+
+        snapshot = builder.build();
+        log.info("Cost cube refreshed: {} cells in {} ms", snapshot.rowCount, System.currentTimeMillis() - started);
+    }
+
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public boolean hasColumn(String column) {
+        return snapshot != null && dimensionIndex(column) >= 0;
+    }
+
+    // The cube only holds its own dimensions at month granularity
+    public boolean canAnswer(CostExplorerFilterDTO filter) {
+        // Account totals need the warehouse's grouping levels
+        if (Boolean.TRUE.equals(filter.getIncludeAccountTotals())) {
+            return false;
+        }
+        if (snapshot == null || dimensionIndex(CostDimension.fromField(filter.getGroupBy()).getColumn()) < 0) {
+            return false;
+        }
+
+        for (CostDimension dimension : CostDimension.values()) {
+            if (!dimension.getFilterValues(filter).isEmpty() && dimensionIndex(dimension.getColumn()) < 0) {
+                return false;
+            }
+        }
+
+        if (filter.getStartDate() != null && filter.getEndDate() != null) {
+            return filter.getStartDate().getDayOfMonth() == 1
+                    && filter.getEndDate().equals(YearMonth.from(filter.getEndDate()).atEndOfMonth());
+        }
+        return true;
+    }
+
+    // Same cells as the warehouse query: group_key x time_period, ordered by time_period, group_key
+    // topN > 0 keeps the N costliest groups and rolls the rest into "Other", like the ranked warehouse query
+    public void aggregate(CostExplorerFilterDTO filter, int topN, CostAggregator aggregator) {
+        if (topN > 0) {
+            CostAggregator all = new CostAggregator();
+            aggregate(filter, 0, all);
+            aggregator.merge(all.topN(topN));
+            return;
+        }
+
+        Snapshot current = snapshot;
+        int groupDimension = dimensionIndex(CostDimension.fromField(filter.getGroupBy()).getColumn());
+        int periodCount = current.periods.size();
+
+        // Accepted codes per dimension; null means unfiltered. Account ids are compared as the warehouse returns them.
+        boolean[][] masks = new boolean[DIMENSIONS.size()][];
+        for (int d = 0; d < DIMENSIONS.size(); d++) {
+            List<String> values = DIMENSIONS.get(d).getFilterValues(filter);
+            if (!values.isEmpty()) {
+                masks[d] = current.dictionaries[d].mask(
+                        DIMENSIONS.get(d) == CostDimension.ACCOUNT_ID ? AccountIds.normalize(values) : values);
+            }
+        }
+
+        int[] accountColumn = current.codes[ACCOUNT_DIMENSION];
+        int[] accountCodes = masks[ACCOUNT_DIMENSION] != null ? selectedCodes(masks[ACCOUNT_DIMENSION]) : null;
+        GroupSums groups = new GroupSums(current.dictionaries[groupDimension].size(), periodCount);
+        int[] groupCodes = current.codes[groupDimension];
+        for (int period = 0; period < periodCount; period++) {
+            if (!inRange(current.periodMonths[period], filter.getStartDate(), filter.getEndDate())) {
+                continue;
+            }
+            int from = current.periodStarts[period];
+            int to = current.periodStarts[period + 1];
+            if (accountCodes == null) {
+                for (int r = from; r < to; r++) {
+                    if (matches(current, masks, r)) {
+                        groups.add(groupCodes[r], period, current.costs[r]);
+                    }
+                }
+                continue;
+            }
+            // Within a month cells are sorted by account code: jump to each selected account's run
+            for (int code : accountCodes) {
+                for (int r = lowerBound(accountColumn, from, to, code); r < to && accountColumn[r] == code; r++) {
+                    if (matches(current, masks, r)) {
+                        groups.add(groupCodes[r], period, current.costs[r]);
+                    }
+                }
+            }
+        }
+
+        // Emit cells in warehouse order, so groups are first seen in the same order
+        Dictionary groupDictionary = current.dictionaries[groupDimension];
+        List<long[]> cells = new ArrayList<>();
+        for (int slot = 0; slot < groups.slotCount; slot++) {
+            for (int p = 0; p < periodCount; p++) {
+                if (groups.present[slot * periodCount + p]) {
+                    cells.add(new long[]{slot, p});
+                }
+            }
+        }
+
+        Comparator<String> nullsLast = Comparator.nullsLast(Comparator.naturalOrder());
+        int[] slotCodes = groups.codeBySlot;
+        cells.sort(Comparator.comparing((long[] cell) -> current.periods.decode((int) cell[1]), nullsLast)
+                .thenComparing(cell -> groupDictionary.decode(slotCodes[(int) cell[0]]), nullsLast));
+
+        for (int i = 0; i < cells.size(); i++) {
+            int slot = (int) cells.get(i)[0];
+            int period = (int) cells.get(i)[1];
+            aggregator.add(groupDictionary.decode(slotCodes[slot]), current.periods.decode(period),
+                    groups.sums[slot * periodCount + period]);
+        }
+    }
+
+    public List<String> getDistinctValues(String column) {
+        Dictionary dictionary = snapshot.dictionaries[dimensionIndex(column)];
+        List<String> values = dictionary.sortedValues();
+        return values.size() > RESULT_LIMIT ? new ArrayList<>(values.subList(0, RESULT_LIMIT)) : values;
+    }
+
+    public List<String> getAllAccountIds() {
+        List<String> accountIds = snapshot.dictionaries[dimensionIndex(CostDimension.ACCOUNT_ID.getColumn())].sortedValues();
+        accountIds.remove(null);
+        return accountIds;
+    }
+
+    public LocalDateTime getLoadedAt() {
+        Snapshot current = snapshot;
+        return current != null ? current.loadedAt : null;
+    }
+
+    private static boolean matches(Snapshot current, boolean[][] masks, int row) {
+        for (int d = 0; d < masks.length; d++) {
+            if (masks[d] != null && !masks[d][current.codes[d][row]]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] selectedCodes(boolean[] mask) {
+        int[] codes = new int[mask.length];
+        int count = 0;
+        for (int code = 0; code < mask.length; code++) {
+            if (mask[code]) {
+                codes[count++] = code;
+            }
+        }
+        return Arrays.copyOf(codes, count);
+    }
+
+    // First row in [from, to) whose code is at least code; the rows are sorted by it
+    private static int lowerBound(int[] column, int from, int to, int code) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (column[mid] < code) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int dimensionIndex(String column) {
+        for (int d = 0; d < DIMENSIONS.size(); d++) {
+            if (DIMENSIONS.get(d).getColumn().equals(column)) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    // Cells without a valid start month only show up in undated queries
+    private static YearMonth toYearMonth(int year, int month) {
+        return year > 0 && month >= 1 && month <= 12 ? YearMonth.of(year, month) : null;
+    }
+
+    private static boolean inRange(YearMonth month, LocalDate start, LocalDate end) {
+        if (start == null || end == null) {
+            return true;
+        }
+        return month != null && !month.isBefore(YearMonth.from(start)) && !month.isAfter(YearMonth.from(end));
+    }
+
+    private static String refreshSql() {
+        StringBuilder columns = new StringBuilder();
+        for (CostDimension dimension : DIMENSIONS) {
+            columns.append(", ").append(dimension.getColumn());
+        }
+        return "SELECT MYCLOUD_STARTYEAR, MYCLOUD_STARTMONTH, "
+                + "CONCAT(MYCLOUD_STARTMONTH, '-', MYCLOUD_STARTYEAR) AS time_period" + columns
+                + ", " + CostMicros.SUM_SQL + " AS total_cost_micros"
+                + " FROM cost_explorer"
+                + " GROUP BY MYCLOUD_STARTYEAR, MYCLOUD_STARTMONTH, time_period" + columns;
+    }
+
+    private static final class Dictionary {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        boolean[] mask(List<String> accepted) {
+            boolean[] mask = new boolean[values.size()];
+            for (String value : accepted) {
+                Integer code = codes.get(value);
+                if (code != null) {
+                    mask[code] = true;
+                }
+            }
+            return mask;
+        }
+
+        List<String> sortedValues() {
+            List<String> sorted = new ArrayList<>(values);
+            sorted.sort(Comparator.nullsLast(Comparator.naturalOrder()));
+            return sorted;
+        }
+    }
+
+    // Groups get compact slots as they are first seen; sums are laid out slot-major
+    private static final class GroupSums {
+        private final int periodCount;
+        private final int[] slotByCode;
+        private int[] codeBySlot = new int[16];
+        private long[] sums;
+        private boolean[] present;
+        private int slotCount;
+
+        private GroupSums(int groupCount, int periodCount) {
+            this.periodCount = periodCount;
+            this.slotByCode = new int[groupCount];
+            Arrays.fill(slotByCode, -1);
+            this.sums = new long[16 * periodCount];
+            this.present = new boolean[16 * periodCount];
+        }
+
+        void add(int groupCode, int period, long cost) {
+            int slot = slotByCode[groupCode];
+            if (slot < 0) {
+                slot = slotCount++;
+                slotByCode[groupCode] = slot;
+                if (slot == codeBySlot.length) {
+                    codeBySlot = Arrays.copyOf(codeBySlot, slot * 2);
+                    sums = Arrays.copyOf(sums, slot * 2 * periodCount);
+                    present = Arrays.copyOf(present, slot * 2 * periodCount);
+                }
+                codeBySlot[slot] = groupCode;
+            }
+            sums[slot * periodCount + period] = Math.addExact(sums[slot * periodCount + period], cost);
+            present[slot * periodCount + period] = true;
+        }
+    }
+
+    private static final class Snapshot {
+        private final Dictionary[] dictionaries;
+        private final Dictionary periods;
+        private final YearMonth[] periodMonths;
+        // Rows sorted by period code, then account code; rows of period p are [periodStarts[p], periodStarts[p + 1])
+        private final int[][] codes;
+        private final int[] periodStarts;
+        // Micro-units (CostMicros)
+        private final long[] costs;
+        private final int rowCount;
+        private final LocalDateTime loadedAt = LocalDateTime.now();
+
+        private Snapshot(Dictionary[] dictionaries, Dictionary periods, YearMonth[] periodMonths, int[][] codes,
+                         int[] periodStarts, long[] costs, int rowCount) {
+            this.dictionaries = dictionaries;
+            this.periods = periods;
+            this.periodMonths = periodMonths;
+            this.codes = codes;
+            this.periodStarts = periodStarts;
+            this.costs = costs;
+            this.rowCount = rowCount;
+        }
+    }
+
+    private static final class SnapshotBuilder {
+        private final Dictionary[] dictionaries = new Dictionary[DIMENSIONS.size()];
+        private final Dictionary periods = new Dictionary();
+        private final List<YearMonth> periodMonths = new ArrayList<>();
+        private int[][] codes = new int[DIMENSIONS.size()][1024];
+        private int[] periodCodes = new int[1024];
+        private long[] costs = new long[1024];
+        private int rowCount;
+
+        private SnapshotBuilder() {
+            for (int d = 0; d < dictionaries.length; d++) {
+                dictionaries[d] = new Dictionary();
+            }
+        }
+
+        void add(String period, YearMonth month, int[] rowCodes, long cost) {
+            if (rowCount == costs.length) {
+                int capacity = rowCount * 2;
+                for (int d = 0; d < codes.length; d++) {
+                    codes[d] = Arrays.copyOf(codes[d], capacity);
+                }
+                periodCodes = Arrays.copyOf(periodCodes, capacity);
+                costs = Arrays.copyOf(costs, capacity);
+            }
+
+            int periodCode = periods.encode(period);
+            if (periodCode == periodMonths.size()) {
+                periodMonths.add(month);
+            }
+
+            for (int d = 0; d < rowCodes.length; d++) {
+                codes[d][rowCount] = rowCodes[d];
+            }
+            periodCodes[rowCount] = periodCode;
+            costs[rowCount] = cost;
+            rowCount++;
+        }
+
+        // Sorts the rows by (period, account) through packed (key << 32 | row) longs
+        Snapshot build() {
+            int accountCount = dictionaries[ACCOUNT_DIMENSION].size();
+            long[] order = new long[rowCount];
+            for (int r = 0; r < rowCount; r++) {
+                long key = (long) periodCodes[r] * accountCount + codes[ACCOUNT_DIMENSION][r];
+                order[r] = key << 32 | r;
+            }
+            Arrays.sort(order);
+
+            int[][] sortedCodes = new int[codes.length][rowCount];
+            long[] sortedCosts = new long[rowCount];
+            int[] periodStarts = new int[periods.size() + 1];
+            for (int i = 0; i < rowCount; i++) {
+                int r = (int) order[i];
+                for (int d = 0; d < codes.length; d++) {
+                    sortedCodes[d][i] = codes[d][r];
+                }
+                sortedCosts[i] = costs[r];
+                periodStarts[periodCodes[r] + 1]++;
+            }
+            for (int p = 0; p < periods.size(); p++) {
+                periodStarts[p + 1] += periodStarts[p];
+            }
+            return new Snapshot(dictionaries, periods, periodMonths.toArray(new YearMonth[0]), sortedCodes,
+                    periodStarts, sortedCosts, rowCount);
+        }
+    }
+}
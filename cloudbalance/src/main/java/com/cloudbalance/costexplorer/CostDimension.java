@@ -0,0 +1,75 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Cost explorer fields, the cost_explorer column behind each one and the filter list that restricts it
+public enum CostDimension {
+    SERVICE("Service", "PRODUCT_PRODUCTNAME", CostExplorerFilterDTO::getServices),
+    INSTANCE_TYPE("InstanceType", "MYCLOUD_INSTANCETYPE", CostExplorerFilterDTO::getInstanceTypes),
+    ACCOUNT_ID("AccountID", "LINKEDACCOUNTID", CostExplorerFilterDTO::getAccountIds),
+    USAGE_TYPE("UsageType", "LINEITEM_USAGETYPE", CostExplorerFilterDTO::getUsageTypes),
+    PLATFORM("Platform", "MYCLOUD_OPERATINGSYSTEM", CostExplorerFilterDTO::getPlatforms),
+    REGION("Region", "MYCLOUD_REGIONNAME", CostExplorerFilterDTO::getRegions),
+    USAGE_TYPE_GROUP("UsageTypeGroup", "MYCLOUD_COST_EXPLORER_USAGE_GROUP_TYPE", CostExplorerFilterDTO::getUsageTypeGroups),
+    PURCHASE_OPTION("PurchaseOption", "MYCLOUD_PRICINGTYPE", CostExplorerFilterDTO::getPurchaseOptions),
+    API_OPERATION("ApiOperation", "LINEITEM_OPERATION", CostExplorerFilterDTO::getApiOperations),
+    RESOURCE("Resource", "PRODUCT_PRODUCTNAME", null), // I might need to make adjustment here
+    AVAILABILITY_ZONE("AvailabilityZone", "AVAILABILITYZONE", CostExplorerFilterDTO::getAvailabilityZones),
+    TENANCY("Tenancy", "TENANCY", CostExplorerFilterDTO::getTenancies),
+    CHARGE_TYPE("ChargeType", "CHARGE_TYPE", null);
+
+    private static final Map<String, CostDimension> BY_FIELD = new HashMap<>();
+
+    static {
+        for (CostDimension dimension : values()) {
+            BY_FIELD.put(dimension.field, dimension);
+        }
+    }
+
+    private final String field;
+    private final String column;
+    private final Function<CostExplorerFilterDTO, List<String>> filterValues;
+
+    CostDimension(String field, String column, Function<CostExplorerFilterDTO, List<String>> filterValues) {
+        this.field = field;
+        this.column = column;
+        this.filterValues = filterValues;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    // Dimensions without a filter list (Resource, ChargeType) can be grouped by but not filtered on
+    public boolean isFilterable() {
+        return filterValues != null;
+    }
+
+    public List<String> getFilterValues(CostExplorerFilterDTO filter) {
+        if (filterValues == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = filterValues.apply(filter);
+        return values != null ? values : Collections.emptyList();
+    }
+
+    public static boolean isValidField(String field) {
+        return field != null && BY_FIELD.containsKey(field);
+    }
+
+    // Unknown or missing fields fall back to grouping by service
+    public static CostDimension fromField(String field) {
+        CostDimension dimension = field != null ? BY_FIELD.get(field) : null;
+        return dimension != null ? dimension : SERVICE;
+    }
+}
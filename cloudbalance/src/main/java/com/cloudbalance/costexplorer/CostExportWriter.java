@@ -0,0 +1,120 @@
+package com.cloudbalance.costexplorer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+// Writes each export row to the output as soon as it is read, so memory stays flat regardless of row count.
+// A slow client blocks the write, which in turn holds back the next fetch from Snowflake.
+public class CostExportWriter implements RowCallbackHandler, AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CostExportFormat format;
+    private final List<String> columns;
+    private final Writer writer;
+    private final JsonGenerator json;
+    private long rowCount;
+
+    public CostExportWriter(CostExportFormat format, List<String> columns, OutputStream out) throws IOException {
+        this.format = format;
+        this.columns = columns;
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        if (format == CostExportFormat.NDJSON) {
+            this.json = new JsonFactory().createGenerator(writer);
+            this.json.setRootValueSeparator(null);
+            // Row flushes only move bytes into the buffered writer, not onto the socket
+            this.json.configure(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM, false);
+        } else {
+            this.json = null;
+            writeCsvRow(columns.toArray(new String[0]));
+        }
+    }
+
+    @Override
+    public void processRow(ResultSet rs) throws SQLException {
+        try {
+            if (format == CostExportFormat.NDJSON) {
+                writeJsonRow(rs);
+            } else {
+                String[] values = new String[columns.size()];
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = rs.getString(c + 1);
+                }
+                writeCsvRow(values);
+            }
+            rowCount++;
+        } catch (IOException e) {
+            // Usually the client went away; stops the JDBC read loop
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (json != null) {
+            json.flush();
+        }
+        writer.flush();
+    }
+
+    // The last column is the cost, written as a JSON number with the warehouse's exact decimal text
+    private void writeJsonRow(ResultSet rs) throws SQLException, IOException {
+        json.writeStartObject();
+        int last = columns.size() - 1;
+        for (int c = 0; c < columns.size(); c++) {
+            String value = rs.getString(c + 1);
+            json.writeFieldName(columns.get(c));
+            if (value == null) {
+                json.writeNull();
+            } else if (c == last) {
+                json.writeNumber(value);
+            } else {
+                json.writeString(value);
+            }
+        }
+        json.writeEndObject();
+        json.flush();
+        writer.write('\n');
+    }
+
+    private void writeCsvRow(String[] values) throws IOException {
+        for (int c = 0; c < values.length; c++) {
+            if (c > 0) {
+                writer.write(',');
+            }
+            writeCsvValue(values[c]);
+        }
+        writer.write('\n');
+    }
+
+    private void writeCsvValue(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
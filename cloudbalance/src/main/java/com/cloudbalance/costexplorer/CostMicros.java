@@ -0,0 +1,25 @@
+package com.cloudbalance.costexplorer;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Costs are aggregated as long millionths of a currency unit and only become BigDecimal for the response.
+// A long holds about 9.2 trillion units, so sums are overflow-checked rather than assumed to fit.
+public final class CostMicros {
+
+    public static final int SCALE = 6;
+
+    // Warehouse-side sum, rounded once per group_key x time_period cell
+    public static final String SUM_SQL = "ROUND(SUM(LINEITEM_UNBLENDEDCOST) * 1000000)";
+
+    private CostMicros() {
+    }
+
+    public static BigDecimal toDecimal(long micros) {
+        return BigDecimal.valueOf(micros, SCALE);
+    }
+
+    public static long fromDecimal(BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+}
@@ -0,0 +1,31 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+// A normalized cost query: shared SQL text for the filter shape plus the bind values for this request
+@Getter
+@AllArgsConstructor
+public class CostQuery {
+    private final String shapeKey;
+    private final String sql;
+    // Table the SQL reads: cost_explorer or a rollup
+    private final String source;
+    private final List<Object> parameters;
+    // Normalized filter the SQL was built from, for backends that don't execute SQL
+    private final CostExplorerFilterDTO filter;
+    // Number of ranked groups kept before the rest is rolled into "Other"; 0 means all rows
+    private final int topN;
+
+    // Ranked queries also return total rows tagged with a grouping_level
+    public boolean isLevelled() {
+        return topN > 0;
+    }
+
+    public Object[] getParameterArray() {
+        return parameters.toArray();
+    }
+}
@@ -0,0 +1,318 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.exception.TooManyRequestsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Admission control in front of the cost store. A fixed number of warehouse statements run at once, bounded
+// per user, per role and for large queries as a class. A query that runs several statements in parallel
+// (partitions) takes one slot per statement, up to max-slots-per-query, and runs no more in parallel than that.
+// Waiting queries are admitted small-first (estimated from months x accounts), FIFO within a class; a large query
+// that has waited long enough goes next. Full queues and waits past max-wait are rejected with a Retry-After hint.
+@Component
+@Slf4j
+public class CostQueryAdmission {
+
+    // Accounts assumed for a query without an account filter, i.e. all accounts
+    private static final int ALL_ACCOUNTS_ESTIMATE = 1000;
+    private static final long CANCEL_CHECK_MILLIS = 250;
+
+    private final boolean enabled;
+    private final int maxConcurrent;
+    private final int maxSlotsPerQuery;
+    private final int maxConcurrentLarge;
+    private final int maxPerUser;
+    private final Map<String, Integer> roleLimits = new HashMap<>();
+    private final int queueCapacity;
+    private final int maxQueuedPerUser;
+    private final long maxWaitMillis;
+    private final long largePromotionMillis;
+    private final long smallMaxAccountMonths;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Deque<Waiter> smallQueue = new ArrayDeque<>();
+    private final Deque<Waiter> largeQueue = new ArrayDeque<>();
+    private final Map<String, Integer> runningByUser = new HashMap<>();
+    private final Map<String, Integer> queuedByUser = new HashMap<>();
+    private final Map<String, Integer> runningByRole = new HashMap<>();
+    // Slots in use
+    private int running;
+    private int runningLarge;
+    // Smoothed query duration, for Retry-After
+    private double averageQueryMillis = 2000;
+
+    private final Timer smallWait;
+    private final Timer largeWait;
+    private final Counter rejectedQueueFull;
+    private final Counter rejectedWaitTimeout;
+
+    public CostQueryAdmission(MeterRegistry meterRegistry,
+                              @Value("${cost-explorer.admission.enabled:true}") boolean enabled,
+                              @Value("${cost-explorer.admission.max-concurrent:8}") int maxConcurrent,
+                              @Value("${cost-explorer.admission.max-slots-per-query:4}") int maxSlotsPerQuery,
+                              @Value("${cost-explorer.admission.max-concurrent-large:2}") int maxConcurrentLarge,
+                              @Value("${cost-explorer.admission.max-per-user:4}") int maxPerUser,
+                              @Value("${cost-explorer.admission.role-limits:}") String roleLimits,
+                              @Value("${cost-explorer.admission.queue-capacity:100}") int queueCapacity,
+                              @Value("${cost-explorer.admission.max-queued-per-user:20}") int maxQueuedPerUser,
+                              @Value("${cost-explorer.admission.max-wait-ms:15000}") long maxWaitMillis,
+                              @Value("${cost-explorer.admission.large-promotion-ms:5000}") long largePromotionMillis,
+                              @Value("${cost-explorer.admission.small-max-account-months:120}") long smallMaxAccountMonths) {
+        this.enabled = enabled;
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        this.maxSlotsPerQuery = Math.clamp(maxSlotsPerQuery, 1, this.maxConcurrent);
+        this.maxConcurrentLarge = Math.max(maxConcurrentLarge, 1);
+        this.maxPerUser = Math.max(maxPerUser, 1);
+        this.queueCapacity = queueCapacity;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.maxWaitMillis = maxWaitMillis;
+        this.largePromotionMillis = largePromotionMillis;
+        this.smallMaxAccountMonths = smallMaxAccountMonths;
+
+        // ROLE:limit,ROLE:limit
+        for (String roleLimit : roleLimits.split(",")) {
+            if (roleLimit.isBlank()) {
+                continue;
+            }
+            String[] parts = roleLimit.split(":", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid admission role limit: " + roleLimit);
+            }
+            this.roleLimits.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+
+        this.smallWait = Timer.builder("cost_explorer.admission.wait").tag("class", "small").register(meterRegistry);
+        this.largeWait = Timer.builder("cost_explorer.admission.wait").tag("class", "large").register(meterRegistry);
+        this.rejectedQueueFull = Counter.builder("cost_explorer.admission.rejected").tag("reason", "queue_full").register(meterRegistry);
+        this.rejectedWaitTimeout = Counter.builder("cost_explorer.admission.rejected").tag("reason", "wait_timeout").register(meterRegistry);
+        Gauge.builder("cost_explorer.admission.queue_depth", smallQueue, Deque::size).tag("class", "small").register(meterRegistry);
+        Gauge.builder("cost_explorer.admission.queue_depth", largeQueue, Deque::size).tag("class", "large").register(meterRegistry);
+        Gauge.builder("cost_explorer.admission.running", this, admission -> admission.running).register(meterRegistry);
+    }
+
+    // Blocks until the query may run; close the permit when the query is done
+    public Permit acquire(String user, String role, CostExplorerFilterDTO filter) {
+        return acquire(user, role, filter, 1);
+    }
+
+    // For a query that would run up to the given number of statements at once; it may run Permit.getSlots()
+    public Permit acquire(String user, String role, CostExplorerFilterDTO filter, int statements) {
+        return acquire(user, role, estimate(filter) > smallMaxAccountMonths, statements);
+    }
+
+    // For scans that are large whatever the filter, e.g. line-level exports
+    public Permit acquireLarge(String user, String role) {
+        return acquire(user, role, true, 1);
+    }
+
+    private Permit acquire(String user, String role, boolean large, int statements) {
+        int slots = Math.clamp(statements, 1, maxSlotsPerQuery);
+        if (!enabled) {
+            return new Permit(null, slots);
+        }
+        Waiter waiter = null;
+        lock.lock();
+        try {
+            if (smallQueue.size() + largeQueue.size() >= queueCapacity
+                    || queuedByUser.getOrDefault(user, 0) >= maxQueuedPerUser) {
+                rejectedQueueFull.increment();
+                throw new TooManyRequestsException("Too many cost queries are waiting. Please retry shortly.",
+                        retryAfterSeconds());
+            }
+
+            waiter = new Waiter(user, role, large, slots, lock.newCondition());
+            (large ? largeQueue : smallQueue).addLast(waiter);
+            queuedByUser.merge(user, 1, Integer::sum);
+            dispatch();
+
+            long deadline = waiter.enqueuedAt + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (!waiter.admitted) {
+                if (CostQueryCanceller.isCurrentCancelled()) {
+                    dequeue(waiter);
+                    throw new CostQueryCancelledException(CostQueryCanceller.current().getCancelReason(), null);
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    dequeue(waiter);
+                    rejectedWaitTimeout.increment();
+                    throw new TooManyRequestsException("The cost query waited too long to run. Please retry shortly.",
+                            retryAfterSeconds());
+                }
+                waiter.condition.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CANCEL_CHECK_MILLIS)));
+                // Large-query promotion depends on time, not only on releases, so it is re-checked on every wakeup
+                dispatch();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.admitted) {
+                release(waiter, 0);
+            } else {
+                dequeue(waiter);
+            }
+            throw new IllegalStateException("Interrupted while waiting to run a cost query", e);
+        } finally {
+            lock.unlock();
+        }
+
+        long waited = System.nanoTime() - waiter.enqueuedAt;
+        (large ? largeWait : smallWait).record(waited, TimeUnit.NANOSECONDS);
+        if (waited > TimeUnit.SECONDS.toNanos(1)) {
+            log.info("Cost query for {} waited {} ms for admission ({})",
+                    user, TimeUnit.NANOSECONDS.toMillis(waited), large ? "large" : "small");
+        }
+        return new Permit(waiter, slots);
+    }
+
+    // Months in the range times accounts in the filter
+    long estimate(CostExplorerFilterDTO filter) {
+        long months = filter.getStartDate() != null && filter.getEndDate() != null
+                ? Math.max(ChronoUnit.MONTHS.between(YearMonth.from(filter.getStartDate()), YearMonth.from(filter.getEndDate())) + 1, 1)
+                : 12;
+        long accounts = filter.getAccountIds() != null && !filter.getAccountIds().isEmpty()
+                ? filter.getAccountIds().size()
+                : ALL_ACCOUNTS_ESTIMATE;
+        return months * accounts;
+    }
+
+    // Admits waiting queries while slots are free; called with the lock held
+    private void dispatch() {
+        while (running < maxConcurrent) {
+            Waiter next = nextEligible();
+            // The next query waits for enough free slots rather than being overtaken by narrower ones
+            if (next == null || running + next.slots > maxConcurrent) {
+                return;
+            }
+            dequeue(next);
+            running += next.slots;
+            if (next.large) {
+                runningLarge++;
+            }
+            runningByUser.merge(next.user, 1, Integer::sum);
+            runningByRole.merge(next.role, 1, Integer::sum);
+            next.admitted = true;
+            next.condition.signal();
+        }
+    }
+
+    private Waiter nextEligible() {
+        // A large query that has waited past the promotion time goes before small ones, so it can't starve
+        Waiter oldestLarge = firstEligible(largeQueue);
+        if (oldestLarge != null
+                && System.nanoTime() - oldestLarge.enqueuedAt > TimeUnit.MILLISECONDS.toNanos(largePromotionMillis)) {
+            return oldestLarge;
+        }
+        Waiter small = firstEligible(smallQueue);
+        return small != null ? small : oldestLarge;
+    }
+
+    // Oldest waiter not held back by its user, role or the large-query bulkhead
+    private Waiter firstEligible(Deque<Waiter> queue) {
+        for (Waiter waiter : queue) {
+            if (waiter.large && runningLarge >= maxConcurrentLarge) {
+                return null;
+            }
+            if (runningByUser.getOrDefault(waiter.user, 0) >= maxPerUser) {
+                continue;
+            }
+            Integer roleLimit = roleLimits.get(waiter.role);
+            if (roleLimit != null && runningByRole.getOrDefault(waiter.role, 0) >= roleLimit) {
+                continue;
+            }
+            return waiter;
+        }
+        return null;
+    }
+
+    private void dequeue(Waiter waiter) {
+        Iterator<Waiter> iterator = (waiter.large ? largeQueue : smallQueue).iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == waiter) {
+                iterator.remove();
+                queuedByUser.computeIfPresent(waiter.user, (user, count) -> count > 1 ? count - 1 : null);
+                return;
+            }
+        }
+    }
+
+    private void release(Waiter waiter, long queryNanos) {
+        lock.lock();
+        try {
+            running -= waiter.slots;
+            if (waiter.large) {
+                runningLarge--;
+            }
+            runningByUser.computeIfPresent(waiter.user, (user, count) -> count > 1 ? count - 1 : null);
+            runningByRole.computeIfPresent(waiter.role, (role, count) -> count > 1 ? count - 1 : null);
+            averageQueryMillis = averageQueryMillis * 0.9 + TimeUnit.NANOSECONDS.toMillis(queryNanos) * 0.1;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Roughly how long until the current queue has drained; called with the lock held
+    private long retryAfterSeconds() {
+        double waves = (double) (smallQueue.size() + largeQueue.size() + 1) / maxConcurrent;
+        return Math.max(1, (long) Math.ceil(waves * averageQueryMillis / 1000));
+    }
+
+    public class Permit implements AutoCloseable {
+        private final Waiter waiter;
+        private final int slots;
+        private final long startedAt = System.nanoTime();
+        private boolean closed;
+
+        private Permit(Waiter waiter, int slots) {
+            this.waiter = waiter;
+            this.slots = slots;
+        }
+
+        // Statements the query may run at once
+        public int getSlots() {
+            return slots;
+        }
+
+        @Override
+        public void close() {
+            if (!closed && waiter != null) {
+                closed = true;
+                release(waiter, System.nanoTime() - startedAt);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final String user;
+        private final String role;
+        private final boolean large;
+        private final int slots;
+        private final Condition condition;
+        private final long enqueuedAt = System.nanoTime();
+        private boolean admitted;
+
+        private Waiter(String user, String role, boolean large, int slots, Condition condition) {
+            this.user = user;
+            this.role = role;
+            this.large = large;
+            this.slots = slots;
+            this.condition = condition;
+        }
+    }
+}
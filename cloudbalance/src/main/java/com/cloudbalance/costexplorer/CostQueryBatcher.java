@@ -0,0 +1,284 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.repository.CostStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// Cross-user micro-batching: warehouse queries arriving within a short window that differ only in account list,
+// group-by and top-N run as one batch query, split by account when the account lists differ. Each caller gets
+// only the rows of its own (already entitlement-restricted) accounts, ranked with the same top-N as the SQL.
+// Callers are admitted before they get here and each holds its own permit. A window only opens when a
+// compatible query is already running, so a lone query never waits. The first caller of a window runs the query
+// for everybody; a caller left alone when the window closes, or whose batch failed or exceeded max-rows, runs its
+// own query as usual.
+@Component
+@Slf4j
+public class CostQueryBatcher {
+
+    private static final long CANCEL_CHECK_MILLIS = 250;
+
+    private final CostQueryBuilder costQueryBuilder;
+    private final CostStore costStore;
+
+    private final boolean enabled;
+    private final long windowMillis;
+    private final int maxQueries;
+    private final int maxAccounts;
+    private final int maxRows;
+
+    // Open batches and queries in flight (batched or not) by compatibility key, guarded by open
+    private final Map<List<Object>, Batch> open = new HashMap<>();
+    private final Map<List<Object>, Integer> inFlight = new HashMap<>();
+
+    private final Counter batched;
+    private final Counter unbatched;
+    private final DistributionSummary batchSize;
+
+    public CostQueryBatcher(CostQueryBuilder costQueryBuilder,
+                            CostStore costStore,
+                            MeterRegistry meterRegistry,
+                            @Value("${cost-explorer.micro-batch.enabled:false}") boolean enabled,
+                            @Value("${cost-explorer.micro-batch.window-ms:25}") long windowMillis,
+                            @Value("${cost-explorer.micro-batch.max-queries:16}") int maxQueries,
+                            @Value("${cost-explorer.micro-batch.max-accounts:500}") int maxAccounts,
+                            @Value("${cost-explorer.micro-batch.max-rows:200000}") int maxRows) {
+        this.costQueryBuilder = costQueryBuilder;
+        this.costStore = costStore;
+        this.enabled = enabled;
+        this.windowMillis = windowMillis;
+        this.maxQueries = Math.max(maxQueries, 2);
+        this.maxAccounts = maxAccounts;
+        this.maxRows = maxRows;
+
+        this.batched = Counter.builder("cost_explorer.micro_batch.queries").tag("result", "batched").register(meterRegistry);
+        this.unbatched = Counter.builder("cost_explorer.micro_batch.queries").tag("result", "alone").register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("cost_explorer.micro_batch.size").register(meterRegistry);
+    }
+
+    // Ranked result for the caller's accounts, from a batch or from alone, which runs the query by itself.
+    // The filter must be normalized and restricted to the caller's accounts.
+    public CostAggregator execute(CostExplorerFilterDTO filter, Supplier<CostAggregator> alone) {
+        if (!enabled || Boolean.TRUE.equals(filter.getIncludeAccountTotals())) {
+            return alone.get();
+        }
+
+        Member member = new Member(filter);
+        List<Object> key = List.of(filter.toBuilder().accountIds(null).groupBy(null).topN(null).build(),
+                member.accountIds == null);
+        Batch led = null;
+        boolean joined = false;
+        synchronized (open) {
+            Batch batch = open.get(key);
+            if (batch != null && batch.tryAdd(member)) {
+                if (batch.members.size() >= maxQueries) {
+                    // Full: close it now, the leader stops waiting
+                    open.remove(key);
+                    batch.closed.complete(null);
+                }
+                joined = true;
+            } else if (inFlight.containsKey(key)) {
+                // Worth waiting only with a compatible query running; a batch that can't take more accounts is
+                // replaced, so it gets no further members
+                led = new Batch(member);
+                open.put(key, led);
+            }
+            inFlight.merge(key, 1, Integer::sum);
+        }
+
+        try {
+            CostAggregator batched = joined ? await(member) : led != null ? lead(key, led) : null;
+            if (batched != null) {
+                return batched.topN(filter.getTopN());
+            }
+            unbatched.increment();
+            return alone.get();
+        } finally {
+            synchronized (open) {
+                inFlight.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+    // The first caller waits out the window, then runs the batch query for every member
+    private CostAggregator lead(List<Object> key, Batch batch) {
+        try {
+            batch.closed.get(windowMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Window over
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (open) {
+            open.remove(key, batch);
+            batch.closed.complete(null);
+        }
+
+        if (batch.members.size() == 1) {
+            return null;
+        }
+
+        List<Member> members = batch.members;
+        try {
+            CostAggregator result = run(batch);
+            batched.increment(members.size());
+            batchSize.record(members.size());
+            return result;
+        } catch (RuntimeException | Error e) {
+            // Every member, the leader included, then runs its own query
+            for (Member member : members) {
+                member.result.completeExceptionally(e);
+            }
+            if (e instanceof CostQueryCancelledException || e instanceof Error) {
+                throw e;
+            }
+            log.warn("Batch cost query of {} queries failed, running them on their own: {}", members.size(), e.getMessage());
+            return null;
+        }
+    }
+
+    private CostAggregator run(Batch batch) {
+        List<Member> members = batch.members;
+        List<String> columns = new ArrayList<>();
+        Map<Integer, List<Member>> byColumn = new HashMap<>();
+        for (Member member : members) {
+            String column = CostDimension.fromField(member.filter.getGroupBy()).getColumn();
+            if (!columns.contains(column)) {
+                columns.add(column);
+            }
+            byColumn.computeIfAbsent(columns.indexOf(column), c -> new ArrayList<>()).add(member);
+        }
+
+        // Split by account only when the members' account lists differ
+        boolean byAccount = false;
+        for (Member member : members) {
+            byAccount |= !member.accountSet.equals(members.get(0).accountSet);
+        }
+        CostExplorerFilterDTO merged = members.get(0).filter.toBuilder()
+                .accountIds(batch.accounts != null ? new ArrayList<>(batch.accounts) : null)
+                .build();
+        CostQuery query = costQueryBuilder.buildBatchQuery(merged, columns, byAccount);
+
+        // Unranked across members, so the rows are capped; past max-rows every member runs its own ranked query
+        boolean splitByAccount = byAccount;
+        int[] rows = new int[1];
+        costStore.streamCostBatch(query, rs -> {
+            if (++rows[0] > maxRows) {
+                throw new BatchTooLargeException(maxRows);
+            }
+            demultiplex(rs, byColumn, splitByAccount);
+        });
+        log.debug("Ran {} cost queries as one batch query [{}]", members.size(), query.getShapeKey());
+
+        for (int m = 1; m < members.size(); m++) {
+            members.get(m).result.complete(members.get(m).aggregator);
+        }
+        return members.get(0).aggregator;
+    }
+
+    // Rows go only to members entitled to the row's account
+    private static void demultiplex(ResultSet rs, Map<Integer, List<Member>> byColumn, boolean byAccount)
+            throws SQLException {
+        List<Member> members = byColumn.get(rs.getInt(1));
+        if (members == null) {
+            return;
+        }
+        String account = byAccount ? AccountIds.normalize(rs.getString(5)) : null;
+        for (Member member : members) {
+            if (!byAccount || member.accountSet.contains(account)) {
+                member.aggregator.add(rs.getString(2), rs.getString(3), rs.getLong(4));
+            }
+        }
+    }
+
+    // Followers wait for the leader; if the leader's query failed or its request was cancelled, they run their own
+    private static CostAggregator await(Member member) {
+        while (true) {
+            CostQueryCanceller.checkCurrent();
+            try {
+                return member.result.get(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check for cancellation again
+            } catch (ExecutionException e) {
+                log.debug("Batched cost query failed, running on its own: {}", e.getCause().getMessage());
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a batched cost query", e);
+            }
+        }
+    }
+
+    private static final class BatchTooLargeException extends RuntimeException {
+        private BatchTooLargeException(int maxRows) {
+            super("more than " + maxRows + " rows", null, false, false);
+        }
+    }
+
+    private final class Batch {
+        private final List<Member> members = new ArrayList<>();
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+        // Union of the members' accounts; null when every member sees all accounts
+        private final Set<String> accounts;
+
+        private Batch(Member leader) {
+            members.add(leader);
+            accounts = leader.filter.getAccountIds() != null ? new TreeSet<>(leader.filter.getAccountIds()) : null;
+        }
+
+        // Called with the open map locked
+        private boolean tryAdd(Member member) {
+            if (closed.isDone()) {
+                return false;
+            }
+            if (accounts != null) {
+                Set<String> union = new TreeSet<>(accounts);
+                union.addAll(member.filter.getAccountIds());
+                if (union.size() > maxAccounts) {
+                    return false;
+                }
+                accounts.addAll(member.filter.getAccountIds());
+            }
+            members.add(member);
+            return true;
+        }
+    }
+
+    private static final class Member {
+        private final CostExplorerFilterDTO filter;
+        // null when the caller sees all accounts
+        private final List<String> accountIds;
+        private final Set<String> accountSet = new HashSet<>();
+        private final CostAggregator aggregator = new CostAggregator();
+        private final CompletableFuture<CostAggregator> result = new CompletableFuture<>();
+
+        private Member(CostExplorerFilterDTO filter) {
+            this.filter = filter;
+            this.accountIds = filter.getAccountIds();
+            if (accountIds != null) {
+                for (String accountId : accountIds) {
+                    accountSet.add(AccountIds.normalize(accountId));
+                }
+            }
+        }
+    }
+}
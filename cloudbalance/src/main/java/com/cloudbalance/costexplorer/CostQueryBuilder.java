@@ -0,0 +1,437 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.repository.CostStore;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CostQueryBuilder {
+
+    private static final int MAX_TEMPLATES = 2048;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final String TIME_PERIOD_SQL = "CONCAT(MYCLOUD_STARTMONTH, '-', MYCLOUD_STARTYEAR)";
+    private static final String ROUNDED_SUM_SQL = "ROUND(SUM(total_cost) * 1000000)";
+
+    // Export columns: usage date, every dimension column, then the cost
+    public static final List<String> EXPORT_COLUMNS = exportColumns();
+
+    // SQL text per filter shape, so equivalent filters always produce byte-identical statements
+    private final Map<String, String> templateCache = new ConcurrentHashMap<>();
+
+    private final CostRollupRegistry costRollupRegistry;
+    // Owns the dialect: large account sets and grouping levels are rendered the way the store runs them
+    private final CostStore costStore;
+
+    @Value("${cost-explorer.top-n.default:25}")
+    private int defaultTopN;
+
+    @Value("${cost-explorer.top-n.max:500}")
+    private int maxTopN;
+
+    // Account filters larger than this are bound as a single set parameter instead of an IN-list
+    @Value("${cost-explorer.account-filter.set-threshold:128}")
+    private int accountSetThreshold;
+
+    public CostQuery buildCostDataQuery(CostExplorerFilterDTO filter) {
+        return buildCostDataQuery(filter, true);
+    }
+
+    // Ranked queries return the top N groups over the whole range plus one "Other" series;
+    // unranked queries return every group_key x time_period row, e.g. for results that get cached per month
+    public CostQuery buildCostDataQuery(CostExplorerFilterDTO filter, boolean ranked) {
+        CostExplorerFilterDTO normalized = normalize(filter);
+        CostDimension groupBy = CostDimension.fromField(normalized.getGroupBy());
+
+        List<FilterSlot> slots = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder shapeKey = new StringBuilder(ranked ? "cost-top:" : "cost-all:").append(groupBy.getColumn());
+        addPredicates(normalized, slots, parameters, shapeKey);
+
+        // The rank cut-off is bound after the WHERE clause values
+        if (ranked) {
+            parameters.add(normalized.getTopN());
+        }
+
+        // Ranked queries can also total by account in the same pass
+        boolean accountTotals = ranked && Boolean.TRUE.equals(normalized.getIncludeAccountTotals());
+        if (accountTotals) {
+            shapeKey.append("|account-totals");
+        }
+
+        // Aggregates can be answered from the smallest rollup holding the group-by and filtered columns
+        Set<String> requiredColumns = new HashSet<>();
+        requiredColumns.add(groupBy.getColumn());
+        if (accountTotals) {
+            requiredColumns.add(CostDimension.ACCOUNT_ID.getColumn());
+        }
+        for (CostDimension dimension : CostDimension.values()) {
+            if (!dimension.getFilterValues(normalized).isEmpty()) {
+                requiredColumns.add(dimension.getColumn());
+            }
+        }
+        String source = costRollupRegistry.selectTable(requiredColumns);
+
+        String key = shapeKey.toString();
+        String sql = template(key + "@" + source, () -> renderCostDataSql(groupBy, slots, ranked, source, accountTotals));
+        return new CostQuery(key, sql, source, parameters, normalized, ranked ? normalized.getTopN() : 0);
+    }
+
+    // Every group_key x time_period cell for several group-by columns in one scan, tagged with the column's
+    // index in groupColumns (see CostBatchAggregator); groupBy and topN of the filter are ignored.
+    // byAccount also splits every cell by account and returns the account id as column 5.
+    public CostQuery buildBatchQuery(CostExplorerFilterDTO filter, List<String> groupColumns, boolean byAccount) {
+        CostExplorerFilterDTO normalized = normalize(filter);
+
+        List<FilterSlot> slots = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder shapeKey = new StringBuilder("cost-batch:").append(String.join(",", groupColumns));
+        if (byAccount) {
+            shapeKey.append("|by-account");
+        }
+        addPredicates(normalized, slots, parameters, shapeKey);
+
+        Set<String> requiredColumns = new HashSet<>(groupColumns);
+        if (byAccount) {
+            requiredColumns.add(CostDimension.ACCOUNT_ID.getColumn());
+        }
+        for (CostDimension dimension : CostDimension.values()) {
+            if (!dimension.getFilterValues(normalized).isEmpty()) {
+                requiredColumns.add(dimension.getColumn());
+            }
+        }
+        String source = costRollupRegistry.selectTable(requiredColumns);
+
+        String key = shapeKey.toString();
+        String sql = template(key + "@" + source, () -> renderBatchSql(groupColumns, slots, source, byAccount));
+        return new CostQuery(key, sql, source, parameters, normalized, 0);
+    }
+
+    // Line-level rows (EXPORT_COLUMNS) matching the filter, unaggregated and unlimited
+    public CostQuery buildExportQuery(CostExplorerFilterDTO filter) {
+        CostExplorerFilterDTO normalized = normalize(filter);
+
+        List<FilterSlot> slots = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder shapeKey = new StringBuilder("export");
+        addPredicates(normalized, slots, parameters, shapeKey);
+
+        String key = shapeKey.toString();
+        String sql = template(key, () -> "SELECT " + String.join(", ", EXPORT_COLUMNS)
+                + " FROM " + CostRollupRegistry.RAW_TABLE + renderWhere(slots, CostRollupRegistry.RAW_TABLE));
+        return new CostQuery(key, sql, CostRollupRegistry.RAW_TABLE, parameters, normalized, 0);
+    }
+
+    // Sorted, de-duplicated copy of the filter; empty lists become null so they don't affect the shape
+    public CostExplorerFilterDTO normalize(CostExplorerFilterDTO filter) {
+        return CostExplorerFilterDTO.builder()
+                .accountIds(normalizeValues(filter.getAccountIds()))
+                .groupBy(CostDimension.fromField(filter.getGroupBy()).getField())
+                .startDate(filter.getStartDate())
+                .endDate(filter.getEndDate())
+                .services(normalizeValues(filter.getServices()))
+                .instanceTypes(normalizeValues(filter.getInstanceTypes()))
+                .usageTypes(normalizeValues(filter.getUsageTypes()))
+                .platforms(normalizeValues(filter.getPlatforms()))
+                .regions(normalizeValues(filter.getRegions()))
+                .usageTypeGroups(normalizeValues(filter.getUsageTypeGroups()))
+                .purchaseOptions(normalizeValues(filter.getPurchaseOptions()))
+                .apiOperations(normalizeValues(filter.getApiOperations()))
+                .resources(normalizeValues(filter.getResources()))
+                .availabilityZones(normalizeValues(filter.getAvailabilityZones()))
+                .tenancies(normalizeValues(filter.getTenancies()))
+                .chargeTypes(normalizeValues(filter.getChargeTypes()))
+                .topN(normalizeTopN(filter.getTopN()))
+                .includeAccountTotals(Boolean.TRUE.equals(filter.getIncludeAccountTotals()) ? Boolean.TRUE : null)
+                .build();
+    }
+
+    private String template(String key, Supplier<String> renderer) {
+        String sql = templateCache.get(key);
+        if (sql == null) {
+            if (templateCache.size() >= MAX_TEMPLATES) {
+                templateCache.clear();
+            }
+            sql = templateCache.computeIfAbsent(key, k -> renderer.get());
+            log.debug("Built cost query template for shape {}", key);
+        }
+        return sql;
+    }
+
+    // Account filter first, then the date range, then the remaining dimensions
+    private void addPredicates(CostExplorerFilterDTO normalized, List<FilterSlot> slots,
+                               List<Object> parameters, StringBuilder shapeKey) {
+        List<Long> accountIds = numericAccountIds(CostDimension.ACCOUNT_ID.getFilterValues(normalized));
+        if (accountIds.size() > accountSetThreshold) {
+            // Thousands of accounts: constant-size SQL text and a semi-join on the native column
+            CostSqlDialect dialect = costStore.getDialect();
+            parameters.add(new AccountIdSet(accountIds, dialect.isAccountSetArray()));
+            slots.add(FilterSlot.accountSet(dialect));
+            shapeKey.append("|ACCOUNT_ID:set");
+        } else {
+            addInListSlot(CostDimension.ACCOUNT_ID, accountIds, slots, parameters, shapeKey);
+        }
+
+        if (normalized.getStartDate() != null && normalized.getEndDate() != null) {
+            slots.add(FilterSlot.dateRange());
+            parameters.add(normalized.getStartDate().format(DATE_FORMAT));
+            parameters.add(normalized.getEndDate().format(DATE_FORMAT));
+            shapeKey.append("|date");
+        }
+
+        for (CostDimension dimension : CostDimension.values()) {
+            if (dimension != CostDimension.ACCOUNT_ID && dimension.isFilterable()) {
+                addInListSlot(dimension, dimension.getFilterValues(normalized), slots, parameters, shapeKey);
+            }
+        }
+    }
+
+    public int getTemplateCount() {
+        return templateCache.size();
+    }
+
+    private List<String> normalizeValues(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String value : values) {
+            if (value != null) {
+                sorted.add(value);
+            }
+        }
+        return sorted.isEmpty() ? null : new ArrayList<>(sorted);
+    }
+
+    private int normalizeTopN(Integer topN) {
+        if (topN == null || topN <= 0) {
+            return defaultTopN;
+        }
+        return Math.min(topN, maxTopN);
+    }
+
+    private void addInListSlot(CostDimension dimension, List<?> values, List<FilterSlot> slots,
+                               List<Object> parameters, StringBuilder shapeKey) {
+        if (values.isEmpty()) {
+            return;
+        }
+
+        // Pad IN-lists to the next power of two so list sizes share a handful of templates
+        int bucketSize = bucketSize(values.size());
+        parameters.addAll(values);
+        for (int i = values.size(); i < bucketSize; i++) {
+            parameters.add(values.get(values.size() - 1));
+        }
+
+        slots.add(FilterSlot.inList(dimension, bucketSize));
+        shapeKey.append('|').append(dimension.name()).append(':').append(bucketSize);
+    }
+
+    // LINKEDACCOUNTID is numeric: ids are bound as numbers, so the warehouse compares and prunes on the native
+    // type. Malformed ids are rejected at the service boundary, so one here is a caller bug.
+    private static List<Long> numericAccountIds(List<String> accountIds) {
+        List<Long> numeric = new ArrayList<>(accountIds.size());
+        for (String accountId : accountIds) {
+            if (!AccountIds.isValid(accountId)) {
+                throw new IllegalArgumentException("Malformed account id: " + accountId);
+            }
+            numeric.add(AccountIds.toNumber(accountId));
+        }
+        return numeric;
+    }
+
+    private static List<String> exportColumns() {
+        List<String> columns = new ArrayList<>();
+        columns.add("USAGESTARTDATE");
+        for (CostDimension dimension : CostDimension.values()) {
+            if (!columns.contains(dimension.getColumn())) {
+                columns.add(dimension.getColumn());
+            }
+        }
+        columns.add("LINEITEM_UNBLENDEDCOST");
+        return List.copyOf(columns);
+    }
+
+    private static int bucketSize(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private String renderCostDataSql(CostDimension groupBy, List<FilterSlot> slots, boolean ranked, String source,
+                                     boolean accountTotals) {
+        if (!ranked) {
+            return "SELECT " + groupBy.getColumn() + " AS group_key, " + TIME_PERIOD_SQL + " AS time_period, "
+                    + CostMicros.SUM_SQL + " AS total_cost_micros FROM " + source + renderWhere(slots, source)
+                    + " GROUP BY group_key, time_period";
+        }
+
+        // Base cells keep the unrounded sum, so every aggregation level below is rounded once from exact values
+        String base = "SELECT " + groupBy.getColumn() + " AS group_key, "
+                + (accountTotals ? "LINKEDACCOUNTID AS account_id, " : "")
+                + TIME_PERIOD_SQL + " AS time_period, SUM(LINEITEM_UNBLENDEDCOST) AS total_cost FROM " + source
+                + renderWhere(slots, source)
+                + " GROUP BY group_key, " + (accountTotals ? "account_id, " : "") + "time_period";
+
+        // Rank groups by cost over the whole range; everything below the cut-off becomes one "Other" series
+        String rankedRows = "WITH base AS (" + base + "), "
+                + "ranked AS (SELECT group_key, "
+                + "ROW_NUMBER() OVER (ORDER BY group_total DESC, group_key) AS group_rank "
+                + "FROM (SELECT group_key, SUM(total_cost) AS group_total FROM base GROUP BY group_key) group_totals), "
+                + "ranked_rows AS (SELECT CASE WHEN r.group_rank <= ? THEN CAST(b.group_key AS VARCHAR) ELSE '"
+                + CostAggregator.OTHER_GROUP + "' END AS group_key, "
+                + (accountTotals ? "CAST(b.account_id AS VARCHAR) AS account_id, " : "")
+                + "b.time_period AS time_period, b.total_cost AS total_cost "
+                + "FROM base b JOIN ranked r ON b.group_key IS NOT DISTINCT FROM r.group_key) ";
+
+        // One pass yields series cells, group totals, period totals, the grand total and optionally account totals,
+        // tagged with CostAggregator's grouping levels
+        return rankedRows + (costStore.getDialect().hasGroupingSets()
+                ? renderGroupingSets(accountTotals)
+                : renderUnionLevels(accountTotals))
+                + " ORDER BY grouping_level, time_period, group_key";
+    }
+
+    private static String renderGroupingSets(boolean accountTotals) {
+        String level = "GROUPING(group_key) * 2 + GROUPING(time_period)";
+        return "SELECT group_key, time_period, " + ROUNDED_SUM_SQL + " AS total_cost_micros, "
+                + (accountTotals
+                ? "CASE WHEN GROUPING(account_id) = 0 THEN " + CostAggregator.ACCOUNT_TOTAL + " ELSE " + level
+                + " END AS grouping_level, account_id "
+                : level + " AS grouping_level, CAST(NULL AS VARCHAR) AS account_id ")
+                + "FROM ranked_rows GROUP BY GROUPING SETS ((group_key, time_period), (group_key), (time_period), ()"
+                + (accountTotals ? ", (account_id))" : ")");
+    }
+
+    // Same rows as renderGroupingSets for stores without GROUPING SETS; each branch reads the ranked_rows CTE
+    private static String renderUnionLevels(boolean accountTotals) {
+        String select = "SELECT %s AS group_key, %s AS time_period, " + ROUNDED_SUM_SQL
+                + " AS total_cost_micros, %d AS grouping_level, %s AS account_id FROM ranked_rows";
+        String none = "CAST(NULL AS VARCHAR)";
+        String sql = String.format(select, "group_key", "time_period", CostAggregator.CELL, none)
+                + " GROUP BY group_key, time_period"
+                + " UNION ALL " + String.format(select, "group_key", none, CostAggregator.GROUP_TOTAL, none)
+                + " GROUP BY group_key"
+                + " UNION ALL " + String.format(select, none, "time_period", CostAggregator.PERIOD_TOTAL, none)
+                + " GROUP BY time_period"
+                + " UNION ALL " + String.format(select, none, none, CostAggregator.GRAND_TOTAL, none);
+        if (accountTotals) {
+            sql += " UNION ALL " + String.format(select, none, none, CostAggregator.ACCOUNT_TOTAL, "account_id")
+                    + " GROUP BY account_id";
+        }
+        return sql;
+    }
+
+    private String renderBatchSql(List<String> groupColumns, List<FilterSlot> slots, String source, boolean byAccount) {
+        String accountColumn = CostDimension.ACCOUNT_ID.getColumn();
+        String accountId = byAccount ? ", CAST(" + accountColumn + " AS VARCHAR) AS account_id" : "";
+        String lineItems = "SELECT " + String.join(", ", groupColumns)
+                + (byAccount && !groupColumns.contains(accountColumn) ? ", " + accountColumn : "") + ", " + TIME_PERIOD_SQL
+                + " AS time_period, LINEITEM_UNBLENDEDCOST FROM " + source + renderWhere(slots, source);
+
+        if (!costStore.getDialect().hasGroupingSets()) {
+            // No GROUPING SETS: one branch per column over the same CTE
+            List<String> branches = new ArrayList<>(groupColumns.size());
+            for (int i = 0; i < groupColumns.size(); i++) {
+                String account = byAccount && !groupColumns.get(i).equals(accountColumn) ? ", " + accountColumn : "";
+                branches.add("SELECT " + i + " AS group_index, CAST(" + groupColumns.get(i)
+                        + " AS VARCHAR) AS group_key, time_period, " + CostMicros.SUM_SQL + " AS total_cost_micros"
+                        + accountId + " FROM line_items GROUP BY " + groupColumns.get(i) + account + ", time_period");
+            }
+            return "WITH line_items AS (" + lineItems + ") " + String.join(" UNION ALL ", branches);
+        }
+
+        // GROUPING() tells which column a row is grouped by, even when the column value itself is NULL.
+        // Split by account, every set holds the account column, so it is only tested after all the others.
+        List<Integer> testOrder = new ArrayList<>(groupColumns.size());
+        List<String> sets = new ArrayList<>(groupColumns.size());
+        int accountIndex = -1;
+        for (int i = 0; i < groupColumns.size(); i++) {
+            String column = groupColumns.get(i);
+            if (byAccount && column.equals(accountColumn)) {
+                accountIndex = i;
+                sets.add("(" + column + ", time_period)");
+            } else {
+                testOrder.add(i);
+                sets.add("(" + column + (byAccount ? ", " + accountColumn : "") + ", time_period)");
+            }
+        }
+        if (accountIndex >= 0) {
+            testOrder.add(accountIndex);
+        }
+        StringBuilder groupIndex = new StringBuilder("CASE");
+        StringBuilder groupKey = new StringBuilder("CASE");
+        for (int i : testOrder) {
+            String column = groupColumns.get(i);
+            groupIndex.append(" WHEN GROUPING(").append(column).append(") = 0 THEN ").append(i);
+            groupKey.append(" WHEN GROUPING(").append(column).append(") = 0 THEN CAST(").append(column)
+                    .append(" AS VARCHAR)");
+        }
+        return "SELECT " + groupIndex + " END AS group_index, " + groupKey + " END AS group_key, time_period, "
+                + CostMicros.SUM_SQL + " AS total_cost_micros" + accountId + " FROM (" + lineItems + ") line_items "
+                + "GROUP BY GROUPING SETS (" + String.join(", ", sets) + ")";
+    }
+
+    // Rollups are at day grain, so their date filter is on the day column
+    private static String renderWhere(List<FilterSlot> slots, String source) {
+        String dateColumn = CostRollupRegistry.dateColumn(source);
+        if (slots.isEmpty()) {
+            return "";
+        }
+        StringBuilder where = new StringBuilder(" WHERE ");
+        for (int i = 0; i < slots.size(); i++) {
+            if (i > 0) {
+                where.append(" AND ");
+            }
+            where.append(slots.get(i).render(dateColumn));
+        }
+        return where.toString();
+    }
+
+    private static final class FilterSlot {
+        private final CostDimension dimension;
+        private final int size;
+        private final String sql;
+
+        private FilterSlot(CostDimension dimension, int size, String sql) {
+            this.dimension = dimension;
+            this.size = size;
+            this.sql = sql;
+        }
+
+        static FilterSlot dateRange() {
+            return new FilterSlot(null, 2, null);
+        }
+
+        static FilterSlot inList(CostDimension dimension, int size) {
+            return new FilterSlot(dimension, size, null);
+        }
+
+        static FilterSlot accountSet(CostSqlDialect dialect) {
+            return new FilterSlot(CostDimension.ACCOUNT_ID, 1, dialect.getAccountSetPredicate());
+        }
+
+        // Columns are compared uncast against values of their own type, so the warehouse can prune on them
+        String render(String dateColumn) {
+            if (sql != null) {
+                return sql;
+            }
+            if (dimension == null) {
+                return dateColumn + " BETWEEN ? AND ?";
+            }
+            return dimension.getColumn() + " IN (" + "?,".repeat(size - 1) + "?)";
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.cloudbalance.costexplorer;
+
+import org.springframework.dao.TransientDataAccessException;
+
+// A cost query stopped on purpose: superseded by a newer request, the client went away or the deadline passed
+public class CostQueryCancelledException extends TransientDataAccessException {
+
+    private final String reason;
+
+    public CostQueryCancelledException(String reason, Throwable cause) {
+        super("Cost query cancelled: " + reason, cause);
+        this.reason = reason;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+}
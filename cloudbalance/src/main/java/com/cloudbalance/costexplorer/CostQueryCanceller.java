@@ -0,0 +1,197 @@
+package com.cloudbalance.costexplorer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.sql.ResultSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Per-request deadlines and cancellation for cost queries. Requests run off the Tomcat thread with their
+// CostQueryContext bound; every warehouse statement they start gets the remaining deadline as its query
+// timeout and is cancelled when the client disconnects or a newer request with the same supersede key arrives.
+@Component
+@Slf4j
+public class CostQueryCanceller {
+
+    public static final String SUPERSEDED = "superseded";
+    public static final String DISCONNECTED = "disconnected";
+    public static final String DEADLINE = "deadline";
+
+    private static final ThreadLocal<CostQueryContext> CURRENT = new ThreadLocal<>();
+
+    private final long timeoutMillis;
+    // Latest request per supersede key (user + endpoint + X-Cost-Query-Key)
+    private final Map<String, CostQueryContext> latest = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+
+    private final Counter superseded;
+    private final Counter disconnected;
+    private final Counter deadline;
+
+    public CostQueryCanceller(MeterRegistry meterRegistry,
+                              @Value("${cost-explorer.query.timeout-ms:60000}") long timeoutMillis,
+                              @Value("${cost-explorer.query.threads:32}") int threads,
+                              @Value("${cost-explorer.query.queue-capacity:256}") int queueCapacity) {
+        this.timeoutMillis = timeoutMillis;
+
+        // A full queue runs the query on the request thread, as before
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "cost-query-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.superseded = Counter.builder("cost_explorer.query.cancellations").tag("reason", SUPERSEDED).register(meterRegistry);
+        this.disconnected = Counter.builder("cost_explorer.query.cancellations").tag("reason", DISCONNECTED).register(meterRegistry);
+        this.deadline = Counter.builder("cost_explorer.query.cancellations").tag("reason", DEADLINE).register(meterRegistry);
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    // Starts a request; an earlier request with the same key (null for none) is cancelled as superseded
+    public CostQueryContext begin(String supersedeKey) {
+        return begin(supersedeKey, timeoutMillis);
+    }
+
+    // Same with its own deadline, e.g. for exports that stream for longer than a dashboard query may run
+    public CostQueryContext begin(String supersedeKey, long timeoutMillis) {
+        CostQueryContext context = new CostQueryContext(supersedeKey, timeoutMillis);
+        if (supersedeKey != null) {
+            CostQueryContext previous = latest.put(supersedeKey, context);
+            if (previous != null) {
+                cancel(previous, SUPERSEDED);
+            }
+        }
+        return context;
+    }
+
+    public void end(CostQueryContext context) {
+        if (context.getSupersedeKey() != null) {
+            latest.remove(context.getSupersedeKey(), context);
+        }
+    }
+
+    public void cancel(CostQueryContext context, String reason) {
+        if (!context.cancel(reason)) {
+            return;
+        }
+        switch (reason) {
+            case SUPERSEDED -> superseded.increment();
+            case DISCONNECTED -> disconnected.increment();
+            default -> deadline.increment();
+        }
+        log.debug("Cancelled cost query: {}", reason);
+    }
+
+    // Runs the work on the query pool with the context bound
+    public <T> CompletableFuture<T> submit(CostQueryContext context, Supplier<T> work) {
+        return CompletableFuture.supplyAsync(() -> callWith(context, work), executor);
+    }
+
+    // Binds context to the current thread for the duration of work, e.g. on partition workers
+    public static <T> T callWith(CostQueryContext context, Supplier<T> work) {
+        CostQueryContext previous = CURRENT.get();
+        CURRENT.set(context);
+        try {
+            return work.get();
+        } finally {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    public static CostQueryContext current() {
+        return CURRENT.get();
+    }
+
+    // True when the current thread's request has been cancelled
+    public static boolean isCurrentCancelled() {
+        CostQueryContext context = CURRENT.get();
+        return context != null && context.isCancelled();
+    }
+
+    // For waits on another request's query: throws when the current request was cancelled or its deadline passed
+    public static void checkCurrent() {
+        CostQueryContext context = CURRENT.get();
+        if (context == null) {
+            return;
+        }
+        if (context.isPastDeadline()) {
+            context.cancel(DEADLINE);
+        }
+        if (context.isCancelled()) {
+            throw new CostQueryCancelledException(context.getCancelReason(), null);
+        }
+    }
+
+    // Streams the query into the handler on a statement registered with the current context, if any
+    public void query(JdbcTemplate jdbcTemplate, CostQuery query, RowCallbackHandler handler) {
+        CostQueryContext context = CURRENT.get();
+        if (context == null) {
+            jdbcTemplate.query(query.getSql(), handler, query.getParameterArray());
+            return;
+        }
+
+        try {
+            jdbcTemplate.execute((PreparedStatementCreator) connection -> connection.prepareStatement(query.getSql()),
+                    (PreparedStatementCallback<Void>) statement -> {
+                        context.attach(statement);
+                        try {
+                            new ArgumentPreparedStatementSetter(query.getParameterArray()).setValues(statement);
+                            try (ResultSet rs = statement.executeQuery()) {
+                                while (rs.next()) {
+                                    handler.processRow(rs);
+                                }
+                            }
+                        } finally {
+                            context.detach(statement);
+                        }
+                        return null;
+                    });
+        } catch (CostQueryCancelledException e) {
+            throw e;
+        } catch (QueryTimeoutException e) {
+            cancel(context, DEADLINE);
+            throw new CostQueryCancelledException(DEADLINE, e);
+        } catch (DataAccessException e) {
+            // The driver reports a cancelled statement as an ordinary SQL error
+            if (context.isCancelled()) {
+                throw new CostQueryCancelledException(context.getCancelReason(), e);
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
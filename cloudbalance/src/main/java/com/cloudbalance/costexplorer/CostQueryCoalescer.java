@@ -0,0 +1,105 @@
+package com.cloudbalance.costexplorer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// Single-flight execution: concurrent callers with the same result cache key share one pending query.
+// The first caller runs it on its own thread; the others wait for its result (or its failure).
+@Component
+@Slf4j
+public class CostQueryCoalescer {
+
+    private static final long CANCEL_CHECK_MILLIS = 250;
+
+    private final boolean enabled;
+    private final Map<CostResultCache.Key, CompletableFuture<CostAggregator>> inFlight =
+            new ConcurrentHashMap<>();
+
+    private final Counter executed;
+    private final Counter coalesced;
+
+    public CostQueryCoalescer(MeterRegistry meterRegistry,
+                              @Value("${cost-explorer.coalescing.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+
+        this.executed = Counter.builder("cost_explorer.coalescer.requests").tag("result", "executed").register(meterRegistry);
+        // Each coalesced request is one query execution saved
+        this.coalesced = Counter.builder("cost_explorer.coalescer.requests").tag("result", "coalesced").register(meterRegistry);
+        Gauge.builder("cost_explorer.coalescer.in_flight", inFlight, Map::size).register(meterRegistry);
+    }
+
+    public CostAggregator execute(CostResultCache.Key key, Supplier<CostAggregator> query) {
+        if (!enabled) {
+            return query.get();
+        }
+
+        CompletableFuture<CostAggregator> pending = new CompletableFuture<>();
+        CompletableFuture<CostAggregator> existing = inFlight.putIfAbsent(key, pending);
+        if (existing != null) {
+            coalesced.increment();
+            log.debug("Attached to an in-flight cost query ({} in flight)", inFlight.size());
+            try {
+                return await(existing);
+            } catch (CostQueryCancelledException e) {
+                // The caller that ran the query was cancelled, not this one: run it again
+                if (CostQueryCanceller.isCurrentCancelled()) {
+                    throw e;
+                }
+                return execute(key, query);
+            }
+        }
+
+        executed.increment();
+        try {
+            CostAggregator result = query.get();
+            pending.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Later callers start a new execution (or hit the result cache)
+            inFlight.remove(key, pending);
+        }
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    // Followers see the same exception as the caller that ran the query, but stop waiting as soon as their own
+    // request is cancelled or past its deadline
+    private static CostAggregator await(CompletableFuture<CostAggregator> future) {
+        while (true) {
+            CostQueryCanceller.checkCurrent();
+            try {
+                return future.get(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check for cancellation again
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                if (e.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a coalesced cost query", e);
+            }
+        }
+    }
+}
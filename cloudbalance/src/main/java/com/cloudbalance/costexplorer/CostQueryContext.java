@@ -0,0 +1,97 @@
+package com.cloudbalance.costexplorer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// One cost request's deadline and the warehouse statements currently running for it (several when partitioned).
+// Child contexts have their own, earlier deadline and are cancelled with their parent.
+@Slf4j
+public class CostQueryContext {
+
+    private final String supersedeKey;
+    private final long deadlineNanos;
+    private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+    private final Set<CostQueryContext> children = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<String> cancelReason = new AtomicReference<>();
+
+    CostQueryContext(String supersedeKey, long timeoutMillis) {
+        this(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), supersedeKey);
+    }
+
+    private CostQueryContext(long deadlineNanos, String supersedeKey) {
+        this.supersedeKey = supersedeKey;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    // Cancelled with this context; its deadline is timeoutMillis from now, or this context's if that is sooner
+    CostQueryContext child(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        CostQueryContext child = new CostQueryContext(deadline - deadlineNanos > 0 ? deadlineNanos : deadline, null);
+        children.add(child);
+        // A cancel() that ran before the add has already gone through the children
+        if (isCancelled()) {
+            child.cancel(getCancelReason());
+        }
+        return child;
+    }
+
+    String getSupersedeKey() {
+        return supersedeKey;
+    }
+
+    public boolean isCancelled() {
+        return cancelReason.get() != null;
+    }
+
+    public String getCancelReason() {
+        return cancelReason.get();
+    }
+
+    boolean isPastDeadline() {
+        return System.nanoTime() - deadlineNanos > 0;
+    }
+
+    // Whole seconds left, at least 1 (0 would mean no timeout to JDBC)
+    int remainingSeconds() {
+        long remaining = TimeUnit.NANOSECONDS.toSeconds(deadlineNanos - System.nanoTime());
+        return (int) Math.max(remaining, 1);
+    }
+
+    // Gives the statement the remaining deadline; a statement attached after cancel() is rejected here
+    void attach(Statement statement) throws SQLException {
+        statements.add(statement);
+        statement.setQueryTimeout(remainingSeconds());
+        if (isCancelled()) {
+            statements.remove(statement);
+            throw new CostQueryCancelledException(getCancelReason(), null);
+        }
+    }
+
+    void detach(Statement statement) {
+        statements.remove(statement);
+    }
+
+    // True only for the first cancel; running statements are cancelled in the warehouse
+    boolean cancel(String reason) {
+        if (!cancelReason.compareAndSet(null, reason)) {
+            return false;
+        }
+        for (Statement statement : statements) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                log.debug("Could not cancel cost query statement: {}", e.getMessage());
+            }
+        }
+        for (CostQueryContext child : children) {
+            child.cancel(reason);
+        }
+        return true;
+    }
+}
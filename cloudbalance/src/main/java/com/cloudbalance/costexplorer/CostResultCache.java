@@ -0,0 +1,220 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Bounded LRU cache of ranked cost explorer results, keyed by normalized filter and effective account set.
+// Entries are the aggregated long matrices, so the JSON and columnar responses render from the same cached data.
+// A cached aggregator is never modified again.
+@Component
+@Slf4j
+public class CostResultCache {
+
+    private static final String ALL_ACCOUNTS = "*";
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttlMillis;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalWeight;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public CostResultCache(MeterRegistry meterRegistry,
+                           @Value("${cost-explorer.result-cache.enabled:true}") boolean enabled,
+                           @Value("${cost-explorer.result-cache.max-entries:500}") int maxEntries,
+                           @Value("${cost-explorer.result-cache.max-weight:2000000}") long maxWeight,
+                           @Value("${cost-explorer.result-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlSeconds * 1000;
+
+        this.hits = Counter.builder("cost_explorer.result_cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("cost_explorer.result_cache.requests").tag("result", "miss").register(meterRegistry);
+        this.evictions = Counter.builder("cost_explorer.result_cache.evictions").register(meterRegistry);
+        Gauge.builder("cost_explorer.result_cache.size", this, CostResultCache::size).register(meterRegistry);
+        Gauge.builder("cost_explorer.result_cache.weight", this, CostResultCache::weight).register(meterRegistry);
+    }
+
+    // The filter must already be normalized and restricted to the caller's accounts
+    public Key keyFor(CostExplorerFilterDTO normalizedFilter) {
+        return new Key(normalizedFilter, accountSetHash(normalizedFilter.getAccountIds()));
+    }
+
+    // Cached result or null; a miss isn't counted, the caller loads through get
+    public CostAggregator getIfPresent(Key key) {
+        if (!enabled) {
+            return null;
+        }
+        CostAggregator cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+        }
+        return cached;
+    }
+
+    public CostAggregator get(Key key, Supplier<CostAggregator> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+
+        CostAggregator cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        CostAggregator result = loader.get();
+        // Partial results are returned but never cached
+        if (!result.isPartial()) {
+            put(key, result);
+        }
+        return result;
+    }
+
+    // Drops entries that could include the account (null = any) and overlap the date range (null = open)
+    public synchronized int invalidate(String accountId, LocalDate from, LocalDate to) {
+        int removed = 0;
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> mapEntry = iterator.next();
+            CostExplorerFilterDTO filter = mapEntry.getKey().getFilter();
+            if (coversAccount(filter, accountId) && overlaps(filter, from, to)) {
+                totalWeight -= mapEntry.getValue().weight;
+                iterator.remove();
+                removed++;
+            }
+        }
+        log.info("Invalidated {} cached cost explorer results (account={}, from={}, to={})",
+                removed, accountId, from, to);
+        return removed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return totalWeight;
+    }
+
+    private synchronized CostAggregator lookup(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            totalWeight -= entry.weight;
+            return null;
+        }
+        return entry.result;
+    }
+
+    private synchronized void put(Key key, CostAggregator result) {
+        long weight = weigh(result);
+        if (weight > maxWeight) {
+            log.debug("Cost explorer result too large to cache (weight {})", weight);
+            return;
+        }
+
+        Entry previous = entries.put(key, new Entry(result, weight, System.currentTimeMillis() + ttlMillis));
+        if (previous != null) {
+            totalWeight -= previous.weight;
+        }
+        totalWeight += weight;
+
+        // Evict least recently used entries until both bounds hold
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || totalWeight > maxWeight) && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            totalWeight -= eldest.weight;
+            evictions.increment();
+        }
+    }
+
+    // Roughly the number of values the result holds
+    private long weigh(CostAggregator result) {
+        return 1 + result.getPeriodCount()
+                + (long) result.getGroupCount() * (1 + result.getPeriodCount())
+                + result.getAccountCount();
+    }
+
+    private boolean coversAccount(CostExplorerFilterDTO filter, String accountId) {
+        return accountId == null || filter.getAccountIds() == null || filter.getAccountIds().contains(accountId);
+    }
+
+    private boolean overlaps(CostExplorerFilterDTO filter, LocalDate from, LocalDate to) {
+        if (filter.getStartDate() == null || filter.getEndDate() == null) {
+            return true;
+        }
+        return (to == null || !filter.getStartDate().isAfter(to))
+                && (from == null || !filter.getEndDate().isBefore(from));
+    }
+
+    private static String accountSetHash(List<String> accountIds) {
+        if (accountIds == null) {
+            return ALL_ACCOUNTS;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String accountId : accountIds) {
+                digest.update(accountId.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) ',');
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Equality compares the full normalized filter, so a hash collision can never share data across tenants
+    @Getter
+    @EqualsAndHashCode
+    public static final class Key {
+        private final CostExplorerFilterDTO filter;
+        private final String accountSetHash;
+
+        private Key(CostExplorerFilterDTO filter, String accountSetHash) {
+            this.filter = filter;
+            this.accountSetHash = accountSetHash;
+        }
+    }
+
+    private static final class Entry {
+        private final CostAggregator result;
+        private final long weight;
+        private final long expiresAt;
+
+        private Entry(CostAggregator result, long weight, long expiresAt) {
+            this.result = result;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.cloudbalance.costexplorer;
+
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// A summary table of cost_explorer at day grain over a subset of the dimension columns. It keeps the raw column
+// names (including LINEITEM_UNBLENDEDCOST, pre-summed), so cost queries run on it unchanged except for the date
+// filter, which selects whole days on DATE_COLUMN. The table name includes a hash of the columns, so a
+// redefinition is built next to the rollup it replaces.
+@Getter
+public class CostRollup {
+
+    public static final String DATE_COLUMN = "USAGE_DATE";
+
+    private final String name;
+    private final List<CostDimension> dimensions;
+    private final Set<String> columns;
+    private final String tableName;
+
+    // Set by the refresh job; only ready rollups are used for queries
+    private volatile boolean ready;
+    private volatile long rowCount;
+    private volatile LocalDateTime refreshedAt;
+
+    public CostRollup(String name, List<CostDimension> dimensions) {
+        this.name = name;
+        this.dimensions = List.copyOf(dimensions);
+        this.columns = new LinkedHashSet<>();
+        for (CostDimension dimension : dimensions) {
+            columns.add(dimension.getColumn());
+        }
+        this.tableName = "cost_rollup_" + name + "_" + Integer.toHexString(String.join(",", columns).hashCode());
+    }
+
+    public boolean covers(Set<String> requiredColumns) {
+        return columns.containsAll(requiredColumns);
+    }
+
+    void markRefreshed(long rowCount) {
+        this.rowCount = rowCount;
+        this.refreshedAt = LocalDateTime.now();
+        this.ready = true;
+    }
+
+    String refreshSql() {
+        String keys = "MYCLOUD_STARTYEAR, MYCLOUD_STARTMONTH, " + String.join(", ", columns);
+        return "CREATE OR REPLACE TABLE " + tableName + " AS SELECT DATE(USAGESTARTDATE) AS " + DATE_COLUMN + ", "
+                + keys + ", SUM(LINEITEM_UNBLENDEDCOST) AS LINEITEM_UNBLENDEDCOST, COUNT(*) AS LINE_ITEMS"
+                + " FROM " + CostRollupRegistry.RAW_TABLE
+                + " GROUP BY DATE(USAGESTARTDATE), " + keys;
+    }
+}
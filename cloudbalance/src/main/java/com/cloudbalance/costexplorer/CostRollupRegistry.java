@@ -0,0 +1,220 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.exception.BadRequestException;
+import com.cloudbalance.exception.ResourceNotFoundException;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Warehouse summary tables the app builds from cost_explorer and rewrites cost queries onto.
+// Rollups come from cost-explorer.rollups.definitions ("name:Field,Field;...") or are registered at runtime.
+// A redefinition is built while the rollup it replaces keeps serving, and only then takes its place. Replaced
+// and unregistered tables are dropped after drop-grace-ms, so statements already planned on them can finish.
+@Component
+@Slf4j
+public class CostRollupRegistry {
+
+    public static final String RAW_TABLE = "cost_explorer";
+
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-z][a-z0-9_]{0,40}");
+
+    private final JdbcTemplate snowflakeBatchJdbcTemplate;
+    private final boolean enabled;
+    private final long dropGraceMillis;
+    // Rollups queries may use, by name
+    private final Map<String, CostRollup> rollups = new ConcurrentHashMap<>();
+    // Redefinitions still being built, by name
+    private final Map<String, CostRollup> pending = new ConcurrentHashMap<>();
+    // Builds newly registered rollups and drops retired tables off the request thread
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cost-rollup-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CostRollupRegistry(@Qualifier("snowflakeBatchJdbcTemplate") JdbcTemplate snowflakeBatchJdbcTemplate,
+                              @Value("${cost-explorer.rollups.enabled:false}") boolean enabled,
+                              @Value("${cost-explorer.rollups.definitions:}") String definitions,
+                              @Value("${cost-explorer.rollups.drop-grace-ms:300000}") long dropGraceMillis) {
+        this.snowflakeBatchJdbcTemplate = snowflakeBatchJdbcTemplate;
+        this.enabled = enabled;
+        this.dropGraceMillis = dropGraceMillis;
+
+        for (String definition : definitions.split(";")) {
+            if (definition.isBlank()) {
+                continue;
+            }
+            String[] parts = definition.split(":", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid rollup definition: " + definition);
+            }
+            register(parts[0].trim(), List.of(parts[1].split(",")));
+        }
+    }
+
+    public synchronized CostRollup register(String name, List<String> fields) {
+        if (name == null || !NAME_PATTERN.matcher(name).matches()) {
+            throw new BadRequestException("Rollup name must match " + NAME_PATTERN.pattern());
+        }
+        if (fields == null || fields.isEmpty()) {
+            throw new BadRequestException("Rollup needs at least one field");
+        }
+
+        List<CostDimension> dimensions = new ArrayList<>();
+        for (String field : fields) {
+            if (!CostDimension.isValidField(field.trim())) {
+                throw new BadRequestException("Invalid rollup field: " + field);
+            }
+            dimensions.add(CostDimension.fromField(field.trim()));
+        }
+
+        CostRollup rollup = new CostRollup(name, dimensions);
+        CostRollup current = rollups.get(name);
+        if (current != null && current.getTableName().equals(rollup.getTableName())) {
+            // Same columns: refreshing rebuilds the same table in place
+            retire(pending.remove(name));
+            return current;
+        }
+        if (current != null && current.isReady()) {
+            // The current rollup keeps serving until the new one is built (see promote)
+            retire(pending.put(name, rollup));
+        } else {
+            retire(rollups.put(name, rollup));
+        }
+        log.info("Registered cost rollup {} over {}", rollup.getTableName(), rollup.getColumns());
+        return rollup;
+    }
+
+    // Stops queries using the rollup at once; its table is dropped after the grace period
+    public synchronized void unregister(String name) {
+        CostRollup removed = rollups.remove(name);
+        CostRollup removedPending = pending.remove(name);
+        if (removed == null && removedPending == null) {
+            throw new ResourceNotFoundException("Cost rollup", "name", name);
+        }
+        retire(removed);
+        retire(removedPending);
+        log.info("Unregistered cost rollup {}", name);
+    }
+
+    public void refreshAsync(CostRollup rollup) {
+        if (enabled) {
+            refreshExecutor.submit(() -> refresh(rollup));
+        }
+    }
+
+    // Serving rollups and the redefinitions being built
+    public List<CostRollup> getRollups() {
+        List<CostRollup> all = new ArrayList<>(rollups.values());
+        all.addAll(pending.values());
+        all.sort(Comparator.comparing(CostRollup::getName).thenComparing(CostRollup::isReady, Comparator.reverseOrder()));
+        return all;
+    }
+
+    // Smallest ready rollup holding every required column, or the raw line-item table
+    public String selectTable(Set<String> requiredColumns) {
+        if (!enabled) {
+            return RAW_TABLE;
+        }
+        return rollups.values().stream()
+                .filter(rollup -> rollup.isReady() && rollup.covers(requiredColumns))
+                .min(Comparator.comparingLong(CostRollup::getRowCount))
+                .map(CostRollup::getTableName)
+                .orElse(RAW_TABLE);
+    }
+
+    // Column the date range is filtered on in the given source table
+    public static String dateColumn(String source) {
+        return RAW_TABLE.equals(source) ? "USAGESTARTDATE" : CostRollup.DATE_COLUMN;
+    }
+
+    @Scheduled(initialDelayString = "${cost-explorer.rollups.initial-delay-ms:60000}",
+            fixedDelayString = "${cost-explorer.rollups.refresh-interval-ms:21600000}")
+    public void refreshAll() {
+        if (!enabled) {
+            return;
+        }
+        for (CostRollup rollup : getRollups()) {
+            refresh(rollup);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    // CREATE OR REPLACE swaps the table atomically, so queries keep using the previous version until it is done
+    private void refresh(CostRollup rollup) {
+        if (!isRegistered(rollup)) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        try {
+            snowflakeBatchJdbcTemplate.execute(rollup.refreshSql());
+            Long rowCount = snowflakeBatchJdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM " + rollup.getTableName(), Long.class);
+            rollup.markRefreshed(rowCount != null ? rowCount : 0);
+            log.info("Refreshed cost rollup {}: {} rows in {} ms",
+                    rollup.getTableName(), rollup.getRowCount(), System.currentTimeMillis() - started);
+        } catch (DataAccessException e) {
+            log.error("Cost rollup {} refresh failed: {}", rollup.getTableName(), e.getMessage());
+            return;
+        }
+        promote(rollup);
+    }
+
+    // A built redefinition replaces the rollup that served meanwhile; one unregistered during the build is dropped
+    private synchronized void promote(CostRollup rollup) {
+        if (pending.remove(rollup.getName(), rollup)) {
+            retire(rollups.put(rollup.getName(), rollup));
+            log.info("Cost rollup {} now served from {}", rollup.getName(), rollup.getTableName());
+        } else if (!isRegistered(rollup)) {
+            retire(rollup);
+        }
+    }
+
+    private boolean isRegistered(CostRollup rollup) {
+        return rollups.get(rollup.getName()) == rollup || pending.get(rollup.getName()) == rollup;
+    }
+
+    private void retire(CostRollup rollup) {
+        if (rollup == null || !enabled) {
+            return;
+        }
+        refreshExecutor.schedule(() -> drop(rollup.getTableName()), dropGraceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void drop(String tableName) {
+        synchronized (this) {
+            // Registered again with the same columns meanwhile
+            for (CostRollup rollup : getRollups()) {
+                if (rollup.getTableName().equals(tableName)) {
+                    return;
+                }
+            }
+        }
+        try {
+            snowflakeBatchJdbcTemplate.execute("DROP TABLE IF EXISTS " + tableName);
+            log.info("Dropped cost rollup table {}", tableName);
+        } catch (DataAccessException e) {
+            log.error("Dropping cost rollup table {} failed: {}", tableName, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.cloudbalance.costexplorer;
+
+// The parts of CostQueryBuilder's SQL that differ between cost stores. Each CostStore says which one it runs.
+public enum CostSqlDialect {
+
+    // A large account filter is a JSON array expanded with FLATTEN; levels come from GROUPING SETS
+    SNOWFLAKE("LINKEDACCOUNTID IN (SELECT entitled.VALUE::NUMBER FROM TABLE(FLATTEN(INPUT => PARSE_JSON(?))) entitled)",
+            false, true),
+    // H2: a BIGINT array compared with = ANY; no GROUPING SETS, so levels are UNION ALL branches
+    H2("LINKEDACCOUNTID = ANY(?)", true, false);
+
+    private final String accountSetPredicate;
+    private final boolean accountSetArray;
+    private final boolean groupingSets;
+
+    CostSqlDialect(String accountSetPredicate, boolean accountSetArray, boolean groupingSets) {
+        this.accountSetPredicate = accountSetPredicate;
+        this.accountSetArray = accountSetArray;
+        this.groupingSets = groupingSets;
+    }
+
+    // Predicate on LINKEDACCOUNTID with one parameter, bound as an AccountIdSet
+    String getAccountSetPredicate() {
+        return accountSetPredicate;
+    }
+
+    // True when the AccountIdSet is bound as a SQL array rather than JSON text
+    boolean isAccountSetArray() {
+        return accountSetArray;
+    }
+
+    boolean hasGroupingSets() {
+        return groupingSets;
+    }
+}
@@ -0,0 +1,193 @@
+package com.cloudbalance.costexplorer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Distinct values of every cost explorer field, loaded in one GROUPING SETS scan and served from memory.
+// Each column keeps a case-insensitive sorted index, so prefix lookups are a binary search.
+@Component
+@Slf4j
+public class FilterValueDictionary {
+
+    private static final int LIST_LIMIT = 1000;
+
+    // Fields sharing a column (Service and Resource) share one value list
+    private static final List<String> COLUMNS = Arrays.stream(CostDimension.values())
+            .map(CostDimension::getColumn)
+            .distinct()
+            .toList();
+
+    private final JdbcTemplate snowflakeBatchJdbcTemplate;
+    private final boolean enabled;
+
+    private volatile Map<String, ValueIndex> indexes;
+    private volatile LocalDateTime loadedAt;
+
+    public FilterValueDictionary(@Qualifier("snowflakeBatchJdbcTemplate") JdbcTemplate snowflakeBatchJdbcTemplate,
+                                 @Value("${cost-explorer.filter-values.enabled:true}") boolean enabled) {
+        this.snowflakeBatchJdbcTemplate = snowflakeBatchJdbcTemplate;
+        this.enabled = enabled;
+    }
+
+    @Scheduled(initialDelayString = "${cost-explorer.filter-values.initial-delay-ms:0}",
+            fixedDelayString = "${cost-explorer.filter-values.refresh-interval-ms:900000}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        List<Set<String>> values = new ArrayList<>(COLUMNS.size());
+        for (int c = 0; c < COLUMNS.size(); c++) {
+            values.add(new HashSet<>());
+        }
+        try {
+            snowflakeBatchJdbcTemplate.query(refreshSql(), rs -> {
+                // Column 1 says which grouping set the row belongs to, its value is at column c + 2
+                int column = rs.getInt(1);
+                values.get(column).add(rs.getString(column + 2));
+            });
+        } catch (DataAccessException e) {
+            log.error("Filter value refresh failed, keeping previous values: {}", e.getMessage());
+            return;
+        }
+
+        Map<String, ValueIndex> built = new HashMap<>();
+        int total = 0;
+        for (int c = 0; c < COLUMNS.size(); c++) {
+            built.put(COLUMNS.get(c), new ValueIndex(values.get(c)));
+            total += values.get(c).size();
+        }
+        indexes = built;
+        loadedAt = LocalDateTime.now();
+        log.info("Filter values refreshed: {} values over {} columns in {} ms",
+                total, COLUMNS.size(), System.currentTimeMillis() - started);
+    }
+
+    public boolean isLoaded() {
+        return indexes != null;
+    }
+
+    public LocalDateTime getLoadedAt() {
+        return loadedAt;
+    }
+
+    // Same contract as the old SELECT DISTINCT ... ORDER BY ... LIMIT 1000: sorted, nulls last
+    public List<String> getValues(String column) {
+        ValueIndex index = indexes.get(column);
+        List<String> values = new ArrayList<>(Math.min(index.sorted.length + 1, LIST_LIMIT));
+        for (int i = 0; i < index.sorted.length && values.size() < LIST_LIMIT; i++) {
+            values.add(index.sorted[i]);
+        }
+        if (index.hasNull && values.size() < LIST_LIMIT) {
+            values.add(null);
+        }
+        return values;
+    }
+
+    // Distinct values of the column, null included; -1 until the first load
+    public int getValueCount(String column) {
+        Map<String, ValueIndex> current = indexes;
+        if (current == null) {
+            return -1;
+        }
+        ValueIndex index = current.get(column);
+        return index.sorted.length + (index.hasNull ? 1 : 0);
+    }
+
+    // Case-insensitive; prefix matches come first (in sort order), then values containing the text elsewhere
+    public List<String> search(String column, String text, int limit) {
+        ValueIndex index = indexes.get(column);
+        String needle = text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+        List<String> matches = new ArrayList<>(Math.min(limit, 64));
+
+        int from = lowerBound(index.lowerByName, needle);
+        int prefixEnd = from;
+        while (prefixEnd < index.lowerByName.length
+                && index.lowerByName[prefixEnd].startsWith(needle)
+                && matches.size() < limit) {
+            matches.add(index.byName[prefixEnd]);
+            prefixEnd++;
+        }
+
+        if (needle.isEmpty()) {
+            return matches;
+        }
+        for (int i = 0; i < index.lowerByName.length && matches.size() < limit; i++) {
+            if (!index.lowerByName[i].startsWith(needle) && index.lowerByName[i].contains(needle)) {
+                matches.add(index.byName[i]);
+            }
+        }
+        return matches;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private String refreshSql() {
+        StringBuilder set = new StringBuilder("CASE");
+        StringBuilder select = new StringBuilder();
+        StringBuilder groupingSets = new StringBuilder();
+        for (int c = 0; c < COLUMNS.size(); c++) {
+            String column = COLUMNS.get(c);
+            set.append(" WHEN GROUPING(").append(column).append(") = 0 THEN ").append(c);
+            select.append(", CAST(").append(column).append(" AS VARCHAR)");
+            groupingSets.append(c > 0 ? ", " : "").append('(').append(column).append(')');
+        }
+        set.append(" END");
+        return "SELECT " + set + select
+                + " FROM cost_explorer GROUP BY GROUPING SETS (" + groupingSets + ")";
+    }
+
+    private static final class ValueIndex {
+        // Natural order, for the plain list
+        private final String[] sorted;
+        // Lower-cased order, for prefix search; byName[i] is the original spelling of lowerByName[i]
+        private final String[] byName;
+        private final String[] lowerByName;
+        private final boolean hasNull;
+
+        private ValueIndex(Set<String> values) {
+            this.hasNull = values.contains(null);
+            this.sorted = values.stream()
+                    .filter(value -> value != null)
+                    .sorted()
+                    .toArray(String[]::new);
+
+            this.byName = sorted.clone();
+            Arrays.sort(byName, Comparator.comparing((String value) -> value.toLowerCase(Locale.ROOT))
+                    .thenComparing(Comparator.naturalOrder()));
+            this.lowerByName = new String[byName.length];
+            for (int i = 0; i < byName.length; i++) {
+                lowerByName[i] = byName[i].toLowerCase(Locale.ROOT);
+            }
+        }
+    }
+}
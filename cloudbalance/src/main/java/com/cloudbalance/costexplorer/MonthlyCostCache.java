@@ -0,0 +1,282 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.model.CostMonthAggregate;
+import com.cloudbalance.repository.CostMonthAggregateRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Splits a cost query into calendar-month segments; closed months are served from MySQL, open months live
+@Component
+@Slf4j
+public class MonthlyCostCache {
+
+    private static final TypeReference<List<CachedRow>> ROWS_TYPE = new TypeReference<>() {
+    };
+    private static final LocalDate MIN_DATE = LocalDate.of(1970, 1, 1);
+    private static final LocalDate MAX_DATE = LocalDate.of(9999, 12, 31);
+
+    private final CostMonthAggregateRepository aggregateRepository;
+    private final CostQueryBuilder costQueryBuilder;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate writeTransaction;
+    private final boolean enabled;
+    private final int closedAfterDays;
+
+    public MonthlyCostCache(CostMonthAggregateRepository aggregateRepository,
+                            CostQueryBuilder costQueryBuilder,
+                            ObjectMapper objectMapper,
+                            PlatformTransactionManager transactionManager,
+                            @Value("${cost-explorer.month-cache.enabled:true}") boolean enabled,
+                            @Value("${cost-explorer.month-cache.closed-after-days:5}") int closedAfterDays) {
+        this.aggregateRepository = aggregateRepository;
+        this.costQueryBuilder = costQueryBuilder;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.closedAfterDays = closedAfterDays;
+
+        // Cost reads run in read-only transactions, so segment writes need their own
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.writeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    // Worth segmenting only when the range starts in a month that is already closed
+    public boolean isApplicable(CostExplorerFilterDTO filter) {
+        return enabled
+                && filter.getStartDate() != null
+                && filter.getEndDate() != null
+                && !filter.getStartDate().isAfter(filter.getEndDate())
+                && isClosed(YearMonth.from(filter.getStartDate()));
+    }
+
+    // liveQuery must aggregate every row (no LIMIT) for the filter it is given
+    public void aggregate(CostExplorerFilterDTO filter, CostAggregator target,
+                          BiConsumer<CostExplorerFilterDTO, CostAggregator> liveQuery) {
+        List<Segment> segments = split(filter.getStartDate(), filter.getEndDate());
+        String cacheKey = cacheKeyFor(filter);
+        Map<String, List<CachedRow>> cached = loadSegments(cacheKey, filter);
+
+        // Cached closed months are used up to the first month that has to be queried
+        int firstLive = segments.size();
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (!segment.closed || !cached.containsKey(segment.key())) {
+                firstLive = i;
+                break;
+            }
+        }
+
+        for (int i = 0; i < firstLive; i++) {
+            for (CachedRow row : cached.get(segments.get(i).key())) {
+                target.add(row.getGroupKey(), row.getTimePeriod(), CostMicros.fromDecimal(row.getTotalCost()));
+            }
+        }
+
+        if (firstLive < segments.size()) {
+            LocalDate liveStart = segments.get(firstLive).start;
+            CostAggregator live = new CostAggregator();
+            liveQuery.accept(filter.toBuilder().startDate(liveStart).build(), live);
+            target.merge(live);
+            if (live.isPartial()) {
+                log.debug("Live cost query was partial, not caching its month segments");
+            } else {
+                storeClosedSegments(cacheKey, filter, segments.subList(firstLive, segments.size()), cached, live);
+            }
+        }
+
+        log.debug("Served {} of {} month segments from the month cache", firstLive, segments.size());
+    }
+
+    // Drops segments that could include the account (null = any) and overlap the date range (null = open)
+    public int invalidate(String accountId, LocalDate from, LocalDate to) {
+        Integer removed = writeTransaction.execute(status -> {
+            if (accountId == null && from == null && to == null) {
+                int count = (int) aggregateRepository.count();
+                aggregateRepository.deleteAllInBatch();
+                return count;
+            }
+            LocalDate start = from != null ? from : MIN_DATE;
+            LocalDate end = to != null ? to : MAX_DATE;
+            if (accountId == null) {
+                return aggregateRepository.deleteOverlapping(start, end);
+            }
+            return aggregateRepository.deleteOverlappingForAccount(start, end, "%," + accountId + ",%");
+        });
+        log.info("Invalidated {} cached cost month segments (account={}, from={}, to={})", removed, accountId, from, to);
+        return removed != null ? removed : 0;
+    }
+
+    private boolean isClosed(YearMonth month) {
+        // CUR keeps restating a month for a few days after it ends
+        return month.atEndOfMonth().plusDays(closedAfterDays).isBefore(LocalDate.now());
+    }
+
+    private List<Segment> split(LocalDate start, LocalDate end) {
+        List<Segment> segments = new ArrayList<>();
+        LocalDate segmentStart = start;
+        while (!segmentStart.isAfter(end)) {
+            YearMonth month = YearMonth.from(segmentStart);
+            LocalDate segmentEnd = month.atEndOfMonth().isAfter(end) ? end : month.atEndOfMonth();
+            segments.add(new Segment(segmentStart, segmentEnd, month, isClosed(month)));
+            segmentStart = segmentEnd.plusDays(1);
+        }
+        return segments;
+    }
+
+    // Keyed by segment bounds, so only segments matching the requested split exactly are reused
+    private Map<String, List<CachedRow>> loadSegments(String cacheKey, CostExplorerFilterDTO filter) {
+        Map<String, List<CachedRow>> cached = new HashMap<>();
+        try {
+            for (CostMonthAggregate aggregate : aggregateRepository.findSegments(
+                    cacheKey, filter.getStartDate(), filter.getEndDate())) {
+                cached.put(segmentKey(aggregate.getSegmentStart(), aggregate.getSegmentEnd()),
+                        objectMapper.readValue(aggregate.getPayload(), ROWS_TYPE));
+            }
+        } catch (DataAccessException | JsonProcessingException e) {
+            log.warn("Could not read cached cost month segments: {}", e.getMessage());
+            cached.clear();
+        }
+        return cached;
+    }
+
+    private void storeClosedSegments(String cacheKey, CostExplorerFilterDTO filter, List<Segment> segments,
+                                     Map<String, List<CachedRow>> cached,
+                                     CostAggregator live) {
+        Map<YearMonth, List<CachedRow>> rowsByMonth = new HashMap<>();
+        List<String> unparsable = new ArrayList<>();
+        live.forEachCell((groupKey, timePeriod, cost) -> {
+            YearMonth month = parseTimePeriod(timePeriod);
+            if (month == null) {
+                unparsable.add(timePeriod);
+                return;
+            }
+            rowsByMonth.computeIfAbsent(month, m -> new ArrayList<>())
+                    .add(new CachedRow(groupKey, timePeriod, CostMicros.toDecimal(cost)));
+        });
+        if (!unparsable.isEmpty()) {
+            log.warn("Unrecognized time periods {}, not caching month segments", unparsable);
+            return;
+        }
+
+        String accountScope = filter.getAccountIds() != null ? "," + String.join(",", filter.getAccountIds()) + "," : null;
+        List<CostMonthAggregate> aggregates = new ArrayList<>();
+        try {
+            for (Segment segment : segments) {
+                if (!segment.closed || cached.containsKey(segment.key())) {
+                    continue;
+                }
+                List<CachedRow> monthRows = rowsByMonth.getOrDefault(segment.month, List.of());
+                aggregates.add(CostMonthAggregate.builder()
+                        .cacheKey(cacheKey)
+                        .segmentStart(segment.start)
+                        .segmentEnd(segment.end)
+                        .accountIds(accountScope)
+                        .rowCount(monthRows.size())
+                        .payload(objectMapper.writeValueAsString(monthRows))
+                        .build());
+            }
+        } catch (JsonProcessingException e) {
+            log.warn("Could not serialize cost month segments: {}", e.getMessage());
+            return;
+        }
+
+        if (aggregates.isEmpty()) {
+            return;
+        }
+        try {
+            writeTransaction.executeWithoutResult(status -> aggregateRepository.saveAll(aggregates));
+            log.debug("Cached {} closed cost month segments", aggregates.size());
+        } catch (DataAccessException e) {
+            // Usually a concurrent request stored the same segment first
+            log.debug("Could not cache cost month segments: {}", e.getMessage());
+        }
+    }
+
+    private static String segmentKey(LocalDate start, LocalDate end) {
+        return start + "/" + end;
+    }
+
+    // Segments are shared by every query with the same shape and non-date parameters
+    private String cacheKeyFor(CostExplorerFilterDTO filter) {
+        CostQuery query = costQueryBuilder.buildCostDataQuery(
+                filter.toBuilder().startDate(null).endDate(null).build(), false);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(query.getShapeKey().getBytes(StandardCharsets.UTF_8));
+            for (Object parameter : query.getParameters()) {
+                digest.update((byte) 0);
+                digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // time_period is CONCAT(MYCLOUD_STARTMONTH, '-', MYCLOUD_STARTYEAR)
+    private YearMonth parseTimePeriod(String timePeriod) {
+        if (timePeriod == null) {
+            return null;
+        }
+        String[] parts = timePeriod.split("-");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return YearMonth.of(Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[0].trim()));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class CachedRow {
+        private String groupKey;
+        private String timePeriod;
+        private BigDecimal totalCost;
+    }
+
+    private static final class Segment {
+        private final LocalDate start;
+        private final LocalDate end;
+        private final YearMonth month;
+        private final boolean closed;
+
+        private Segment(LocalDate start, LocalDate end, YearMonth month, boolean closed) {
+            this.start = start;
+            this.end = end;
+            this.month = month;
+            this.closed = closed;
+        }
+
+        private String key() {
+            return segmentKey(start, end);
+        }
+    }
+}
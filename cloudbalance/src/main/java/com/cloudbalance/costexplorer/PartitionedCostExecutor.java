@@ -0,0 +1,262 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.repository.CostStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Splits a large cost query into month-range x account-shard partitions, runs them on a bounded pool
+// and merges the partial group_key x time_period aggregates. A query keeps at most its admitted parallelism
+// of partitions in flight. Every partition gets one retry; partitions still missing at the deadline are
+// dropped, their warehouse statements cancelled, and the result is marked partial.
+@Component
+@Slf4j
+public class PartitionedCostExecutor {
+
+    private final CostQueryBuilder costQueryBuilder;
+    private final CostStore costStore;
+    private final ThreadPoolExecutor executor;
+
+    private final boolean enabled;
+    private final int minMonths;
+    private final int monthsPerPartition;
+    private final int accountShardSize;
+    private final int maxPartitions;
+    private final long deadlineMillis;
+
+    private final Counter succeeded;
+    private final Counter retried;
+    private final Counter failed;
+    private final Counter timedOut;
+
+    public PartitionedCostExecutor(CostQueryBuilder costQueryBuilder,
+                                   CostStore costStore,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${cost-explorer.partitioned.enabled:true}") boolean enabled,
+                                   @Value("${cost-explorer.partitioned.parallelism:8}") int parallelism,
+                                   @Value("${cost-explorer.partitioned.queue-capacity:256}") int queueCapacity,
+                                   @Value("${cost-explorer.partitioned.min-months:6}") int minMonths,
+                                   @Value("${cost-explorer.partitioned.months-per-partition:3}") int monthsPerPartition,
+                                   @Value("${cost-explorer.partitioned.account-shard-size:100}") int accountShardSize,
+                                   @Value("${cost-explorer.partitioned.max-partitions:16}") int maxPartitions,
+                                   @Value("${cost-explorer.partitioned.deadline-ms:60000}") long deadlineMillis) {
+        this.costQueryBuilder = costQueryBuilder;
+        this.costStore = costStore;
+        this.enabled = enabled;
+        this.minMonths = minMonths;
+        this.monthsPerPartition = Math.max(monthsPerPartition, 1);
+        this.accountShardSize = Math.max(accountShardSize, 1);
+        this.maxPartitions = Math.max(maxPartitions, 1);
+        this.deadlineMillis = deadlineMillis;
+
+        // A full queue runs the partition on the request thread, which throttles the submitter
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "cost-partition-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.succeeded = Counter.builder("cost_explorer.partitions").tag("result", "ok").register(meterRegistry);
+        this.retried = Counter.builder("cost_explorer.partitions").tag("result", "retried").register(meterRegistry);
+        this.failed = Counter.builder("cost_explorer.partitions").tag("result", "failed").register(meterRegistry);
+        this.timedOut = Counter.builder("cost_explorer.partitions").tag("result", "timed_out").register(meterRegistry);
+    }
+
+    // Worth splitting only for long date ranges or many accounts
+    public boolean isApplicable(CostExplorerFilterDTO filter) {
+        if (!enabled || filter.getStartDate() == null || filter.getEndDate() == null
+                || filter.getStartDate().isAfter(filter.getEndDate())) {
+            return false;
+        }
+        return months(filter) >= minMonths || accountCount(filter) > accountShardSize;
+    }
+
+    // Statements a query for the filter would run, i.e. the most it can use in parallel
+    public int partitionCount(CostExplorerFilterDTO filter) {
+        return isApplicable(filter) ? plan(filter).size() : 1;
+    }
+
+    // Aggregates every row (no top-N) for the filter into target, running at most parallelism partitions at once
+    public void aggregate(CostExplorerFilterDTO filter, CostAggregator target, int parallelism) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        List<CostExplorerFilterDTO> partitions = plan(filter);
+        // Partitions share the request's cancellation; cancelling this context at the deadline stops only them
+        CostQueryContext parent = CostQueryCanceller.current();
+        CostQueryContext context = parent != null
+                ? parent.child(deadlineMillis)
+                : new CostQueryContext(null, deadlineMillis);
+
+        // Sliding window: partition i + parallelism starts once partition i is done
+        int window = Math.clamp(parallelism, 1, partitions.size());
+        List<Future<CostAggregator>> futures = new ArrayList<>(partitions.size());
+        for (int i = 0; i < window; i++) {
+            futures.add(submit(partitions.get(i), context));
+        }
+
+        int completed = 0;
+        RuntimeException lastFailure = null;
+        for (int i = 0; i < partitions.size(); i++) {
+            try {
+                target.merge(await(partitions.get(i), futures.get(i), context, deadline));
+                succeeded.increment();
+                completed++;
+            } catch (TimeoutException e) {
+                timedOut.increment(partitions.size() - i);
+                context.cancel(CostQueryCanceller.DEADLINE);
+                for (int j = i; j < futures.size(); j++) {
+                    futures.get(j).cancel(true);
+                }
+                lastFailure = new QueryTimeoutException("Cost query deadline of " + deadlineMillis + " ms exceeded");
+                break;
+            } catch (CostQueryCancelledException e) {
+                // The request itself was cancelled, so the other partitions are not wanted either
+                context.cancel(e.getReason());
+                for (int j = i + 1; j < futures.size(); j++) {
+                    futures.get(j).cancel(true);
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                failed.increment();
+                lastFailure = e;
+            }
+            if (futures.size() < partitions.size()) {
+                futures.add(submit(partitions.get(futures.size()), context));
+            }
+        }
+
+        if (completed == 0 && lastFailure != null) {
+            throw lastFailure;
+        }
+        if (completed < partitions.size()) {
+            target.markPartial();
+            log.warn("Cost query returned partial results: {} of {} partitions completed",
+                    completed, partitions.size());
+        } else {
+            log.debug("Cost query completed in {} partitions", partitions.size());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Future<CostAggregator> submit(CostExplorerFilterDTO partition, CostQueryContext context) {
+        return executor.submit(() -> CostQueryCanceller.callWith(context, () -> {
+            CostAggregator aggregator = new CostAggregator();
+            costStore.streamCostData(costQueryBuilder.buildCostDataQuery(partition, false), aggregator);
+            return aggregator;
+        }));
+    }
+
+    // Waits for a partition, retrying it once if it failed (not if it was cancelled) and there is time left
+    private CostAggregator await(CostExplorerFilterDTO partition, Future<CostAggregator> future,
+                                 CostQueryContext context, long deadline) throws TimeoutException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                RuntimeException cause = e.getCause() instanceof RuntimeException runtime
+                        ? runtime
+                        : new IllegalStateException(e.getCause());
+                if (cause instanceof CostQueryCancelledException) {
+                    throw cause;
+                }
+                if (attempt > 1) {
+                    log.error("Cost query partition failed after retry: {}", cause.getMessage());
+                    throw cause;
+                }
+                log.warn("Cost query partition failed, retrying: {}", cause.getMessage());
+                retried.increment();
+                future = submit(partition, context);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                throw new TimeoutException("Interrupted while waiting for cost query partition");
+            }
+        }
+    }
+
+    // More months and more accounts mean more partitions, up to maxPartitions
+    private List<CostExplorerFilterDTO> plan(CostExplorerFilterDTO filter) {
+        List<List<String>> accountShards = accountShards(filter.getAccountIds());
+        int monthChunks = (int) Math.min(
+                Math.ceilDiv(months(filter), monthsPerPartition),
+                Math.max(maxPartitions / accountShards.size(), 1));
+
+        List<CostExplorerFilterDTO> partitions = new ArrayList<>();
+        for (LocalDate[] range : monthRanges(filter.getStartDate(), filter.getEndDate(), monthChunks)) {
+            for (List<String> accounts : accountShards) {
+                partitions.add(filter.toBuilder()
+                        .startDate(range[0])
+                        .endDate(range[1])
+                        .accountIds(accounts)
+                        .build());
+            }
+        }
+        return partitions;
+    }
+
+    private List<List<String>> accountShards(List<String> accountIds) {
+        List<List<String>> shards = new ArrayList<>();
+        if (accountIds == null || accountIds.size() <= accountShardSize) {
+            shards.add(accountIds);
+            return shards;
+        }
+
+        int shardCount = Math.min(Math.ceilDiv(accountIds.size(), accountShardSize), maxPartitions);
+        for (int s = 0; s < shardCount; s++) {
+            int from = accountIds.size() * s / shardCount;
+            int to = accountIds.size() * (s + 1) / shardCount;
+            shards.add(new ArrayList<>(accountIds.subList(from, to)));
+        }
+        return shards;
+    }
+
+    // Contiguous runs of whole months; the first and last keep the requested start and end day
+    private static List<LocalDate[]> monthRanges(LocalDate start, LocalDate end, int chunks) {
+        YearMonth first = YearMonth.from(start);
+        long months = ChronoUnit.MONTHS.between(first, YearMonth.from(end)) + 1;
+
+        List<LocalDate[]> ranges = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            YearMonth from = first.plusMonths(months * c / chunks);
+            YearMonth to = first.plusMonths(months * (c + 1) / chunks - 1);
+            ranges.add(new LocalDate[]{
+                    c == 0 ? start : from.atDay(1),
+                    c == chunks - 1 ? end : to.atEndOfMonth()});
+        }
+        return ranges;
+    }
+
+    private static long months(CostExplorerFilterDTO filter) {
+        return ChronoUnit.MONTHS.between(YearMonth.from(filter.getStartDate()), YearMonth.from(filter.getEndDate())) + 1;
+    }
+
+    private static int accountCount(CostExplorerFilterDTO filter) {
+        return filter.getAccountIds() == null ? 0 : filter.getAccountIds().size();
+    }
+}
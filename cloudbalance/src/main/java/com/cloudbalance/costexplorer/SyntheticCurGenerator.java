@@ -0,0 +1,123 @@
+package com.cloudbalance.costexplorer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Fills a cost_explorer table with CUR-like line items: a few services, accounts and usage types carry most
+// of the spend (Zipf-like skew), costs have 10 decimals and include occasional credits. Seeded, so repeatable.
+@Slf4j
+public class SyntheticCurGenerator {
+
+    private static final String INSERT_SQL = "INSERT INTO cost_explorer (USAGESTARTDATE, MYCLOUD_STARTYEAR, "
+            + "MYCLOUD_STARTMONTH, LINKEDACCOUNTID, PRODUCT_PRODUCTNAME, MYCLOUD_INSTANCETYPE, LINEITEM_USAGETYPE, "
+            + "MYCLOUD_OPERATINGSYSTEM, MYCLOUD_REGIONNAME, MYCLOUD_COST_EXPLORER_USAGE_GROUP_TYPE, MYCLOUD_PRICINGTYPE, "
+            + "LINEITEM_OPERATION, AVAILABILITYZONE, TENANCY, CHARGE_TYPE, LINEITEM_UNBLENDEDCOST) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final int BATCH_SIZE = 5000;
+
+    private static final String[] SERVICES = {"Amazon Elastic Compute Cloud", "Amazon Relational Database Service",
+            "Amazon Simple Storage Service", "AWS Lambda", "Amazon CloudFront", "Amazon DynamoDB",
+            "Amazon Elastic Kubernetes Service", "Amazon ElastiCache", "Amazon Redshift", "AWS Data Transfer",
+            "Amazon CloudWatch", "Amazon Simple Queue Service", "AWS Key Management Service", "Amazon Route 53"};
+    private static final String[] REGIONS = {"us-east-1", "us-west-2", "eu-west-1", "eu-central-1", "ap-south-1",
+            "ap-southeast-1", "ap-northeast-1", "sa-east-1"};
+    private static final String[] INSTANCE_TYPES = {"t3.micro", "t3.medium", "m5.large", "m5.xlarge", "c5.2xlarge",
+            "r5.large", "r6g.xlarge", "db.r5.large", "cache.m5.large", null};
+    private static final String[] PLATFORMS = {"Linux", "Windows", "RHEL", null};
+    private static final String[] USAGE_GROUPS = {"EC2: Running Hours", "S3: Storage - Standard",
+            "RDS: Running Hours", "Data Transfer: Internet (Out)", "Lambda: Requests", "CloudWatch: Metrics"};
+    private static final String[] PRICING = {"OnDemand", "Reserved", "Savings Plans", "Spot"};
+    private static final String[] OPERATIONS = {"RunInstances", "CreateDBInstance", "PutObject", "GetObject",
+            "Invoke", "NatGateway", "LoadBalancing", "InterZone-In"};
+    private static final String[] TENANCIES = {"Shared", "Dedicated", null};
+    private static final String[] CHARGE_TYPES = {"Usage", "Usage", "Usage", "Tax", "Credit", "Fee"};
+
+    private final long seed;
+    private final int accounts;
+    private final int usageTypes;
+
+    public SyntheticCurGenerator(long seed, int accounts, int usageTypes) {
+        this.seed = seed;
+        this.accounts = accounts;
+        this.usageTypes = usageTypes;
+    }
+
+    // Spreads rows evenly over the months ending with lastMonth
+    public long generate(DataSource dataSource, long rows, YearMonth lastMonth, int months) throws SQLException {
+        Random random = new Random(seed);
+        List<Long> accountIds = new ArrayList<>(accounts);
+        for (int a = 0; a < accounts; a++) {
+            accountIds.add(100000000000L + a * 7919L);
+        }
+
+        long started = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement insert = connection.prepareStatement(INSERT_SQL)) {
+            connection.setAutoCommit(false);
+            for (long row = 0; row < rows; row++) {
+                YearMonth month = lastMonth.minusMonths(months - 1 - row * months / rows);
+                LocalDateTime usageStart = month.atDay(1 + random.nextInt(month.lengthOfMonth()))
+                        .atTime(random.nextInt(24), 0);
+                String service = pick(SERVICES, random);
+                String region = pick(REGIONS, random);
+
+                insert.setTimestamp(1, Timestamp.valueOf(usageStart));
+                insert.setInt(2, month.getYear());
+                insert.setInt(3, month.getMonthValue());
+                insert.setLong(4, accountIds.get(skewed(accounts, random)));
+                insert.setString(5, service);
+                insert.setString(6, pick(INSTANCE_TYPES, random));
+                insert.setString(7, region.toUpperCase().replace("-", "") + "-Usage-" + skewed(usageTypes, random));
+                insert.setString(8, pick(PLATFORMS, random));
+                insert.setString(9, region);
+                insert.setString(10, pick(USAGE_GROUPS, random));
+                insert.setString(11, pick(PRICING, random));
+                insert.setString(12, pick(OPERATIONS, random));
+                insert.setString(13, region + (char) ('a' + random.nextInt(3)));
+                insert.setString(14, pick(TENANCIES, random));
+                String chargeType = pick(CHARGE_TYPES, random);
+                insert.setString(15, chargeType);
+                insert.setBigDecimal(16, cost(chargeType, random));
+                insert.addBatch();
+
+                if ((row + 1) % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+
+        log.info("Generated {} synthetic CUR rows over {} months in {} ms",
+                rows, months, System.currentTimeMillis() - started);
+        return rows;
+    }
+
+    // Log-normal-ish spend with 10 decimals; credits are negative
+    private static BigDecimal cost(String chargeType, Random random) {
+        long tenBillionths = (long) (Math.exp(random.nextGaussian() * 2.0) * 50_000_000L);
+        BigDecimal cost = BigDecimal.valueOf(tenBillionths, 10);
+        return "Credit".equals(chargeType) ? cost.negate() : cost;
+    }
+
+    private static String pick(String[] values, Random random) {
+        return values[skewed(values.length, random)];
+    }
+
+    // Index in [0, size) where low indexes are much more likely, roughly Zipf-distributed
+    private static int skewed(int size, Random random) {
+        return (int) Math.min(size - 1, Math.floor(Math.pow(size + 1, random.nextDouble())) - 1);
+    }
+}
@@ -0,0 +1,31 @@
+package com.cloudbalance.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+// Compact form of CostExplorerResponseDTO: time labels are sent once and every series is a dense
+// array aligned to them (0 where a group has no cost in a period). Costs are exact integers in units of
+// 10^-scale (micros), so no precision is lost on the way to the client.
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ColumnarCostResponseDTO {
+    private List<String> timeUnits;
+    private List<String> keys;
+    private int scale;
+    // values[group][period]
+    private long[][] values;
+    private long[] groupTotals;
+    // Aligned to timeUnits
+    private long[] totals;
+    private long grandTotal;
+    private Map<String, Long> accountTotals;
+    private int totalRecords;
+    private boolean partial;
+}
@@ -9,7 +9,7 @@ import java.time.LocalDate;
 import java.util.List;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class CostExplorerFilterDTO {
@@ -29,4 +29,8 @@ public class CostExplorerFilterDTO {
     private List<String> availabilityZones;
     private List<String> tenancies;
     private List<String> chargeTypes;
+    // Number of series to return before the remainder is rolled into "Other"
+    private Integer topN;
+    // Also return the cost per linked account over the whole filter (side panel), in the same query
+    private Boolean includeAccountTotals;
 }
\ No newline at end of file
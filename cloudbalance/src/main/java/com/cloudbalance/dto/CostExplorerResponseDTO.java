@@ -17,5 +17,10 @@ public class CostExplorerResponseDTO {
     private List<String> timeUnits;
     private List<CostGroupDTO> groups;
     private Map<String, BigDecimal> totals;
+    private BigDecimal grandTotal;
+    // Cost per linked account, costliest first; only when the filter asked for account totals
+    private Map<String, BigDecimal> accountTotals;
     private int totalRecords;
+    // True when part of the query failed or ran past its deadline
+    private boolean partial;
 }
\ No newline at end of file
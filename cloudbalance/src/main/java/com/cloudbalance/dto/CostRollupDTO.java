@@ -0,0 +1,23 @@
+package com.cloudbalance.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CostRollupDTO {
+    private String name;
+    // Cost explorer field names, e.g. AccountID, Service
+    private List<String> fields;
+    private String tableName;
+    private boolean ready;
+    private long rowCount;
+    private LocalDateTime refreshedAt;
+}
@@ -1,8 +1,14 @@
 package com.cloudbalance.exception;
 
+import com.cloudbalance.costexplorer.CostQueryCancelledException;
+import com.cloudbalance.costexplorer.CostQueryCanceller;
 import com.cloudbalance.dto.ApiResponseDto;
 import com.cloudbalance.dto.ResponseDTO;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
@@ -94,6 +100,43 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(TooManyRequestsException.class)
+    public ResponseEntity<ApiResponseDto<Object>> handleTooManyRequestsException(
+            TooManyRequestsException ex, WebRequest request) {
+        log.warn("Too many requests: {}", ex.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(ApiResponseDto.error(ex.getMessage()));
+    }
+
+    @ExceptionHandler(CostQueryCancelledException.class)
+    public ResponseEntity<ApiResponseDto<Object>> handleCostQueryCancelledException(
+            CostQueryCancelledException ex, WebRequest request) {
+        log.warn("Cost query cancelled: {}", ex.getReason());
+        // Never an empty result. A disconnected client won't read the response, but the status still shows in logs.
+        return switch (ex.getReason()) {
+            case CostQueryCanceller.DEADLINE -> new ResponseEntity<>(
+                    ApiResponseDto.error("The cost query took too long. Try a shorter date range or fewer groups."),
+                    HttpStatus.GATEWAY_TIMEOUT);
+            case CostQueryCanceller.SUPERSEDED -> new ResponseEntity<>(
+                    ApiResponseDto.error("The cost query was superseded by a newer request."), HttpStatus.CONFLICT);
+            case CostQueryCanceller.DISCONNECTED -> new ResponseEntity<>(
+                    ApiResponseDto.error("The cost query was cancelled because the client disconnected."),
+                    HttpStatus.SERVICE_UNAVAILABLE);
+            default -> new ResponseEntity<>(
+                    ApiResponseDto.error("The cost query was cancelled (" + ex.getReason() + ")."), HttpStatus.CONFLICT);
+        };
+    }
+
+    // Warehouse or database unreachable, or a query timed out: retryable, and never reported as empty data
+    @ExceptionHandler({TransientDataAccessException.class, DataAccessResourceFailureException.class})
+    public ResponseEntity<ApiResponseDto<Object>> handleDataUnavailableException(
+            DataAccessException ex, WebRequest request) {
+        log.error("Data store unavailable: {}", ex.getMessage());
+        return new ResponseEntity<>(ApiResponseDto.error("Cost data is temporarily unavailable. Please try again later."),
+                HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<ApiResponseDto<Object>> handleGlobalException(
             Exception ex, WebRequest request) {
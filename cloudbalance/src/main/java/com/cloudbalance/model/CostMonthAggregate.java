@@ -0,0 +1,39 @@
+package com.cloudbalance.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.LocalDate;
+
+// Persisted group_key x time_period cost rows for one closed billing month segment of a cost query
+@Entity
+@Table(name = "cost_month_aggregates",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"cache_key", "segment_start", "segment_end"}))
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class CostMonthAggregate extends BaseEntity {
+
+    @Column(name = "cache_key", nullable = false, length = 64)
+    private String cacheKey;
+
+    @Column(name = "segment_start", nullable = false)
+    private LocalDate segmentStart;
+
+    @Column(name = "segment_end", nullable = false)
+    private LocalDate segmentEnd;
+
+    // Account ids of the query wrapped in commas (",1,2,"); null when it covered all accounts
+    @Lob
+    @Column(name = "account_ids", columnDefinition = "LONGTEXT")
+    private String accountIds;
+
+    @Column(name = "row_count", nullable = false)
+    private Integer rowCount;
+
+    @Lob
+    @Column(name = "payload", nullable = false, columnDefinition = "LONGTEXT")
+    private String payload;
+}
@@ -25,6 +25,9 @@ public interface CloudAccountRepository extends JpaRepository<CloudAccount, Long
     @Query("SELECT ca FROM CloudAccount ca JOIN ca.users u WHERE u.id = :userId")
     Set<CloudAccount> findByUserId(@Param("userId") Long userId);
 
+    @Query("SELECT ca.accountId FROM CloudAccount ca JOIN ca.users u WHERE u.id = :userId")
+    List<String> findAccountIdsByUserId(@Param("userId") Long userId);
+
     @Query("SELECT ca FROM CloudAccount ca WHERE ca NOT IN (SELECT ca2 FROM CloudAccount ca2 JOIN ca2.users u)")
     Set<CloudAccount> findOrphanedAccounts();
 
@@ -1,46 +1,122 @@
 package com.cloudbalance.repository;
 
+import com.cloudbalance.costexplorer.CostAggregator;
+import com.cloudbalance.costexplorer.CostCube;
+import com.cloudbalance.costexplorer.CostQuery;
+import com.cloudbalance.costexplorer.CostQueryCancelledException;
+import com.cloudbalance.costexplorer.CostQueryCanceller;
+import com.cloudbalance.costexplorer.CostSqlDialect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Repository;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
+    // Snowflake cost store
     @Repository
-    public class CostExplorerRepository {
+    @ConditionalOnProperty(name = "cost-explorer.store", havingValue = "snowflake", matchIfMissing = true)
+    public class CostExplorerRepository implements CostStore {
         private final JdbcTemplate snowflakeJdbcTemplate;
+        private final CostCube costCube;
+        private final CostQueryCanceller costQueryCanceller;
+        // Exports run on the batch pool, so they never hold interactive connections
+        private final JdbcTemplate exportJdbcTemplate;
         private final Logger log = LoggerFactory.getLogger(CostExplorerRepository.class);
 
         @Autowired
-        public CostExplorerRepository(@Qualifier("snowflakeJdbcTemplate") JdbcTemplate snowflakeJdbcTemplate) {
+        public CostExplorerRepository(@Qualifier("snowflakeJdbcTemplate") JdbcTemplate snowflakeJdbcTemplate,
+                                      @Qualifier("snowflakeBatchJdbcTemplate") JdbcTemplate snowflakeBatchJdbcTemplate,
+                                      CostCube costCube,
+                                      CostQueryCanceller costQueryCanceller,
+                                      @Value("${cost-explorer.export.fetch-size:10000}") int exportFetchSize) {
             this.snowflakeJdbcTemplate = snowflakeJdbcTemplate;
+            this.costCube = costCube;
+            this.costQueryCanceller = costQueryCanceller;
+            this.exportJdbcTemplate = new JdbcTemplate(snowflakeBatchJdbcTemplate.getDataSource());
+            this.exportJdbcTemplate.setFetchSize(exportFetchSize);
         }
 
-        public List<Map<String, Object>> getCostData(String sql) {
+        // Line-level rows are handed to the handler one at a time, fetched in bounded batches
+        @Override
+        public CostSqlDialect getDialect() {
+            return CostSqlDialect.SNOWFLAKE;
+        }
+
+        @Override
+        public void streamExport(CostQuery query, RowCallbackHandler handler) {
+            log.debug("Executing SQL export query [{}]: {}", query.getShapeKey(), query.getSql());
+            // Registered with the export's context, so a disconnect or its deadline cancels the statement
+            costQueryCanceller.query(exportJdbcTemplate, query, handler);
+        }
+
+        // Streams result rows straight into the aggregator, no intermediate row maps
+        @Override
+        public void streamCostData(CostQuery query, CostAggregator aggregator) {
+            // Answer from the in-memory cube when it covers the filter, otherwise go to Snowflake
+            if (costCube.canAnswer(query.getFilter())) {
+                log.debug("Answering cost data query [{}] from the cost cube", query.getShapeKey());
+                costCube.aggregate(query.getFilter(), query.getTopN(), aggregator);
+                return;
+            }
+
             try {
-                log.debug("Executing SQL cost data query: {}", sql);
-                return snowflakeJdbcTemplate.queryForList(sql);
-            } catch (Exception e) {
+                log.info("Cost data query [{}] reads {}", query.getShapeKey(), query.getSource());
+                log.debug("Executing SQL cost data query: {}", query.getSql());
+                // Bound parameters go through a PreparedStatement, so equal shapes reuse the same SQL text;
+                // the statement carries the request deadline and is cancelled with the request
+                costQueryCanceller.query(snowflakeJdbcTemplate, query,
+                        query.isLevelled() ? aggregator.levelledRows() : aggregator);
+            } catch (CostQueryCancelledException e) {
+                log.info("Cost data query [{}] cancelled: {}", query.getShapeKey(), e.getReason());
+                throw e;
+            } catch (DataAccessException e) {
                 log.error("Error executing cost data query: {}", e.getMessage(), e);
-                log.error("SQL was: {}", sql);
-                e.printStackTrace();
-                return new ArrayList<>();
+                log.error("SQL was: {} with parameters {}", query.getSql(), query.getParameters());
+                // Let the caller decide, so failed queries are never cached as empty results
+                throw e;
             }
         }
 
+        // Several group-bys of one filter in a single scan; filters the cube can answer are never batched
+        @Override
+        public void streamCostBatch(CostQuery query, RowCallbackHandler handler) {
+            try {
+                log.info("Batch cost query [{}] reads {}", query.getShapeKey(), query.getSource());
+                log.debug("Executing SQL batch cost query: {}", query.getSql());
+                costQueryCanceller.query(snowflakeJdbcTemplate, query, handler);
+            } catch (CostQueryCancelledException e) {
+                log.info("Batch cost query [{}] cancelled: {}", query.getShapeKey(), e.getReason());
+                throw e;
+            } catch (DataAccessException e) {
+                log.error("Error executing batch cost query: {}", e.getMessage(), e);
+                log.error("SQL was: {} with parameters {}", query.getSql(), query.getParameters());
+                throw e;
+            }
+        }
+
+    @Override
     public List<String> getDistinctValuesForField(String field) {
+        if (costCube.hasColumn(field)) {
+            return costCube.getDistinctValues(field);
+        }
 //        String sql = "SELECT DISTINCT " + field + " FROM aws.cost.cost_data ORDER BY " + field + " LIMIT 1000";
         String sql = "SELECT DISTINCT " + field + " FROM cost_explorer ORDER BY " + field + " LIMIT 1000";
 //        return jdbcTemplate.queryForList(sql, String.class);
         return snowflakeJdbcTemplate.queryForList(sql, String.class);
     }
 
+    @Override
     public List<String> getAllAccountIds() {
+        if (costCube.isLoaded()) {
+            return costCube.getAllAccountIds();
+        }
 //        String sql = "SELECT DISTINCT LINKEDACCOUNTID FROM aws.cost.cost_data ORDER BY LINKEDACCOUNTID";
         String sql = "SELECT DISTINCT LINKEDACCOUNTID FROM cost_explorer ORDER BY LINKEDACCOUNTID";
         return snowflakeJdbcTemplate.queryForList(sql, String.class);
@@ -0,0 +1,33 @@
+package com.cloudbalance.repository;
+
+import com.cloudbalance.model.CostMonthAggregate;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Repository
+public interface CostMonthAggregateRepository extends JpaRepository<CostMonthAggregate, Long> {
+
+    @Query("SELECT a FROM CostMonthAggregate a WHERE a.cacheKey = :cacheKey " +
+            "AND a.segmentStart >= :from AND a.segmentEnd <= :to")
+    List<CostMonthAggregate> findSegments(@Param("cacheKey") String cacheKey,
+                                          @Param("from") LocalDate from,
+                                          @Param("to") LocalDate to);
+
+    @Modifying
+    @Query("DELETE FROM CostMonthAggregate a WHERE a.segmentStart <= :to AND a.segmentEnd >= :from")
+    int deleteOverlapping(@Param("from") LocalDate from, @Param("to") LocalDate to);
+
+    // Segments of queries that could include the account: filtered on it, or not filtered by account at all
+    @Modifying
+    @Query("DELETE FROM CostMonthAggregate a WHERE a.segmentStart <= :to AND a.segmentEnd >= :from " +
+            "AND (a.accountIds IS NULL OR a.accountIds LIKE :accountPattern)")
+    int deleteOverlappingForAccount(@Param("from") LocalDate from,
+                                    @Param("to") LocalDate to,
+                                    @Param("accountPattern") String accountPattern);
+}
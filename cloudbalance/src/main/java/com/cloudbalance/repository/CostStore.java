@@ -0,0 +1,29 @@
+package com.cloudbalance.repository;
+
+import com.cloudbalance.costexplorer.CostAggregator;
+import com.cloudbalance.costexplorer.CostQuery;
+import com.cloudbalance.costexplorer.CostSqlDialect;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.util.List;
+
+// Where cost_explorer rows live. Selected with cost-explorer.store: snowflake (default) or local (embedded H2).
+// Implementations accept the same cost_explorer schema and run the SQL built by CostQueryBuilder.
+public interface CostStore {
+
+    // SQL the store runs, where the stores differ
+    CostSqlDialect getDialect();
+
+    // Streams group_key x time_period x total_cost_micros rows into the aggregator
+    void streamCostData(CostQuery query, CostAggregator aggregator);
+
+    // Streams the rows of a combined batch query (group_index, group_key, time_period, total_cost_micros)
+    void streamCostBatch(CostQuery query, RowCallbackHandler handler);
+
+    // Streams line-level export rows to the handler
+    void streamExport(CostQuery query, RowCallbackHandler handler);
+
+    List<String> getDistinctValuesForField(String column);
+
+    List<String> getAllAccountIds();
+}
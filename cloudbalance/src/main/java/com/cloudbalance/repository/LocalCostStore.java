@@ -0,0 +1,116 @@
+package com.cloudbalance.repository;
+
+import com.cloudbalance.costexplorer.CostAggregator;
+import com.cloudbalance.costexplorer.CostQuery;
+import com.cloudbalance.costexplorer.CostQueryCanceller;
+import com.cloudbalance.costexplorer.CostSqlDialect;
+import com.cloudbalance.costexplorer.SyntheticCurGenerator;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.stereotype.Repository;
+
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.util.List;
+
+// In-process H2 cost store with the cost_explorer schema, filled with synthetic CUR rows at startup.
+// For load tests and benchmarks without a warehouse; enable with cost-explorer.store=local.
+@Repository
+@ConditionalOnProperty(name = "cost-explorer.store", havingValue = "local")
+@Slf4j
+public class LocalCostStore implements CostStore {
+
+    private final EmbeddedDatabase database;
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate exportJdbcTemplate;
+    private final CostQueryCanceller costQueryCanceller;
+
+    private final long syntheticRows;
+    private final int syntheticMonths;
+    private final int syntheticAccounts;
+    private final int syntheticUsageTypes;
+    private final long syntheticSeed;
+
+    public LocalCostStore(CostQueryCanceller costQueryCanceller,
+                          @Value("${cost-explorer.local-store.synthetic-rows:1000000}") long syntheticRows,
+                          @Value("${cost-explorer.local-store.synthetic-months:13}") int syntheticMonths,
+                          @Value("${cost-explorer.local-store.synthetic-accounts:200}") int syntheticAccounts,
+                          @Value("${cost-explorer.local-store.synthetic-usage-types:500}") int syntheticUsageTypes,
+                          @Value("${cost-explorer.local-store.synthetic-seed:42}") long syntheticSeed,
+                          @Value("${cost-explorer.export.fetch-size:10000}") int exportFetchSize) {
+        this.costQueryCanceller = costQueryCanceller;
+        this.syntheticRows = syntheticRows;
+        this.syntheticMonths = Math.max(syntheticMonths, 1);
+        this.syntheticAccounts = Math.max(syntheticAccounts, 1);
+        this.syntheticUsageTypes = Math.max(syntheticUsageTypes, 1);
+        this.syntheticSeed = syntheticSeed;
+
+        this.database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .generateUniqueName(true)
+                .addScript("db/local-store/cost_explorer.sql")
+                .build();
+        this.jdbcTemplate = new JdbcTemplate(database);
+        this.exportJdbcTemplate = new JdbcTemplate(database);
+        this.exportJdbcTemplate.setFetchSize(exportFetchSize);
+    }
+
+    @PostConstruct
+    public void load() throws SQLException {
+        if (syntheticRows <= 0) {
+            log.info("Local cost store started empty");
+            return;
+        }
+        new SyntheticCurGenerator(syntheticSeed, syntheticAccounts, syntheticUsageTypes)
+                .generate(database, syntheticRows, YearMonth.now(), syntheticMonths);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        database.shutdown();
+    }
+
+    @Override
+    public CostSqlDialect getDialect() {
+        return CostSqlDialect.H2;
+    }
+
+    @Override
+    public void streamCostData(CostQuery query, CostAggregator aggregator) {
+        log.debug("Executing local cost data query [{}]: {}", query.getShapeKey(), query.getSql());
+        costQueryCanceller.query(jdbcTemplate, query, query.isLevelled() ? aggregator.levelledRows() : aggregator);
+    }
+
+    @Override
+    public void streamCostBatch(CostQuery query, RowCallbackHandler handler) {
+        log.debug("Executing local batch cost query [{}]: {}", query.getShapeKey(), query.getSql());
+        costQueryCanceller.query(jdbcTemplate, query, handler);
+    }
+
+    @Override
+    public void streamExport(CostQuery query, RowCallbackHandler handler) {
+        log.debug("Executing local export query [{}]: {}", query.getShapeKey(), query.getSql());
+        costQueryCanceller.query(exportJdbcTemplate, query, handler);
+    }
+
+    // Column names come from CostDimension, never from the request
+    @Override
+    public List<String> getDistinctValuesForField(String column) {
+        String sql = "SELECT DISTINCT " + column + " FROM cost_explorer ORDER BY " + column + " NULLS LAST LIMIT 1000";
+        return jdbcTemplate.queryForList(sql, String.class);
+    }
+
+    @Override
+    public List<String> getAllAccountIds() {
+        return jdbcTemplate.queryForList(
+                "SELECT DISTINCT LINKEDACCOUNTID FROM cost_explorer ORDER BY LINKEDACCOUNTID", String.class);
+    }
+}
@@ -0,0 +1,61 @@
+package com.cloudbalance.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// A user's role and the cloud account ids they may see. Admin and read-only users see every account.
+public final class AccountEntitlement {
+
+    private final Long userId;
+    private final String roleName;
+    private final boolean allAccounts;
+    // Sorted; empty for all-accounts users
+    private final List<String> accountIds;
+    private final Set<String> accountIdSet;
+
+    private AccountEntitlement(Long userId, String roleName, boolean allAccounts, Collection<String> accountIds) {
+        this.userId = userId;
+        this.roleName = roleName;
+        this.allAccounts = allAccounts;
+        this.accountIds = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(accountIds)));
+        this.accountIdSet = Collections.unmodifiableSet(new HashSet<>(this.accountIds));
+    }
+
+    public static AccountEntitlement allAccounts(Long userId, String roleName) {
+        return new AccountEntitlement(userId, roleName, true, List.of());
+    }
+
+    public static AccountEntitlement of(Long userId, String roleName, Collection<String> accountIds) {
+        return new AccountEntitlement(userId, roleName, false, accountIds);
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public String getRoleName() {
+        return roleName;
+    }
+
+    public boolean isAllAccounts() {
+        return allAccounts;
+    }
+
+    public List<String> getAccountIds() {
+        return accountIds;
+    }
+
+    public Set<String> getAccountIdSet() {
+        return accountIdSet;
+    }
+
+    // True when the user can see no account at all
+    public boolean isEmpty() {
+        return !allAccounts && accountIds.isEmpty();
+    }
+}
@@ -0,0 +1,127 @@
+package com.cloudbalance.security;
+
+import com.cloudbalance.exception.ResourceNotFoundException;
+import com.cloudbalance.model.Role;
+import com.cloudbalance.model.User;
+import com.cloudbalance.repository.CloudAccountRepository;
+import com.cloudbalance.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// userId -> AccountEntitlement (and username -> userId), so cost queries authorize without touching MySQL.
+// UserServiceImpl invalidates a user once a transaction that changed their role or accounts has committed;
+// max-age is only a safety net.
+@Component
+@Slf4j
+public class AccountEntitlementCache {
+
+    private final UserRepository userRepository;
+    private final CloudAccountRepository cloudAccountRepository;
+    private final long maxAgeMillis;
+
+    private final Map<Long, Entry> entitlements = new ConcurrentHashMap<>();
+    private final Map<String, Long> userIds = new ConcurrentHashMap<>();
+    // Bumped by every invalidation; a load that overlapped one is not cached, as it may have read old rows
+    private final AtomicLong generation = new AtomicLong();
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public AccountEntitlementCache(UserRepository userRepository,
+                                   CloudAccountRepository cloudAccountRepository,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${cost-explorer.entitlements.max-age-ms:600000}") long maxAgeMillis) {
+        this.userRepository = userRepository;
+        this.cloudAccountRepository = cloudAccountRepository;
+        this.maxAgeMillis = maxAgeMillis;
+
+        this.hits = Counter.builder("cost_explorer.entitlements.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("cost_explorer.entitlements.requests").tag("result", "miss").register(meterRegistry);
+    }
+
+    public AccountEntitlement get(Long userId) {
+        Entry entry = entitlements.get(userId);
+        if (entry != null && System.currentTimeMillis() - entry.loadedAt < maxAgeMillis) {
+            hits.increment();
+            return entry.entitlement;
+        }
+
+        misses.increment();
+        long loadedGeneration = generation.get();
+        AccountEntitlement entitlement = load(userId);
+        if (generation.get() == loadedGeneration) {
+            entitlements.put(userId, new Entry(entitlement, System.currentTimeMillis()));
+        }
+        return entitlement;
+    }
+
+    public Long getUserId(String username) {
+        Long userId = userIds.get(username);
+        if (userId != null) {
+            return userId;
+        }
+
+        long loadedGeneration = generation.get();
+        userId = userRepository.findByUsername(username)
+                .orElseThrow(() -> new ResourceNotFoundException("User", "username", username))
+                .getId();
+        if (generation.get() == loadedGeneration) {
+            userIds.put(username, userId);
+        }
+        return userId;
+    }
+
+    // Drops the user's entries when the current transaction commits (immediately outside a transaction)
+    public void invalidateAfterCommit(Long userId) {
+        afterCommit(() -> {
+            generation.incrementAndGet();
+            entitlements.remove(userId);
+            userIds.values().removeIf(userId::equals);
+            log.debug("Invalidated account entitlements for user {}", userId);
+        });
+    }
+
+    private void afterCommit(Runnable invalidation) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidation.run();
+                }
+            });
+        } else {
+            invalidation.run();
+        }
+    }
+
+    // Role name plus account id strings only; no CloudAccount entities (and their credentials) are loaded
+    private AccountEntitlement load(Long userId) {
+        User user = userRepository.findByIdWithRole(userId)
+                .orElseThrow(() -> new ResourceNotFoundException("User", "id", userId));
+        String roleName = user.getRole().getName();
+
+        if (roleName.equals(Role.ROLE_ADMIN) || roleName.equals(Role.ROLE_READ_ONLY)) {
+            return AccountEntitlement.allAccounts(userId, roleName);
+        }
+        return AccountEntitlement.of(userId, roleName, cloudAccountRepository.findAccountIdsByUserId(userId));
+    }
+
+    private static final class Entry {
+        private final AccountEntitlement entitlement;
+        private final long loadedAt;
+
+        private Entry(AccountEntitlement entitlement, long loadedAt) {
+            this.entitlement = entitlement;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
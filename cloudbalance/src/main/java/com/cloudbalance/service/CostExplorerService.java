@@ -1,13 +1,28 @@
 // CostExplorerService.java
 package com.cloudbalance.service;
 
+import com.cloudbalance.costexplorer.CostExportFormat;
+import com.cloudbalance.dto.ColumnarCostResponseDTO;
 import com.cloudbalance.dto.CostExplorerFilterDTO;
 import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.cloudbalance.dto.CostRollupDTO;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
 import java.util.List;
 
 public interface CostExplorerService {
     CostExplorerResponseDTO getCostData(CostExplorerFilterDTO filter, Long userId);
+    List<CostExplorerResponseDTO> getCostDataBatch(List<CostExplorerFilterDTO> filters, Long userId);
+    ColumnarCostResponseDTO getColumnarCostData(CostExplorerFilterDTO filter, Long userId);
+    long exportCostData(CostExplorerFilterDTO filter, Long userId, CostExportFormat format, OutputStream out) throws IOException;
     List<String> getDistinctValuesForField(String field);
+    List<String> searchDistinctValuesForField(String field, String query, int limit);
+    List<String> getCascadingValuesForField(String field, CostExplorerFilterDTO filter, Long userId);
     List<String> getAccountsForUser(Long userId);
+    int invalidateCachedCostData(String accountId, LocalDate from, LocalDate to);
+    List<CostRollupDTO> getCostRollups();
+    CostRollupDTO registerCostRollup(CostRollupDTO rollup);
+    void unregisterCostRollup(String name);
 }
\ No newline at end of file
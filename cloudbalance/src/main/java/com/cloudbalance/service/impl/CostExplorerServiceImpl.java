@@ -1,14 +1,32 @@
 package com.cloudbalance.service.impl;
 
+import com.cloudbalance.costexplorer.AccountIds;
+import com.cloudbalance.costexplorer.CascadingFilterIndex;
+import com.cloudbalance.costexplorer.CostAggregator;
+import com.cloudbalance.costexplorer.CostBatchAggregator;
+import com.cloudbalance.costexplorer.CostCube;
+import com.cloudbalance.costexplorer.CostDimension;
+import com.cloudbalance.costexplorer.CostExportFormat;
+import com.cloudbalance.costexplorer.CostExportWriter;
+import com.cloudbalance.costexplorer.CostQuery;
+import com.cloudbalance.costexplorer.CostQueryAdmission;
+import com.cloudbalance.costexplorer.CostQueryBatcher;
+import com.cloudbalance.costexplorer.CostQueryBuilder;
+import com.cloudbalance.costexplorer.CostQueryCoalescer;
+import com.cloudbalance.costexplorer.CostResultCache;
+import com.cloudbalance.costexplorer.CostRollup;
+import com.cloudbalance.costexplorer.CostRollupRegistry;
+import com.cloudbalance.costexplorer.FilterValueDictionary;
+import com.cloudbalance.costexplorer.MonthlyCostCache;
+import com.cloudbalance.costexplorer.PartitionedCostExecutor;
+import com.cloudbalance.dto.ColumnarCostResponseDTO;
 import com.cloudbalance.dto.CostExplorerFilterDTO;
 import com.cloudbalance.dto.CostExplorerResponseDTO;
-import com.cloudbalance.dto.CostGroupDTO;
-import com.cloudbalance.model.CloudAccount;
-import com.cloudbalance.model.Role;
-import com.cloudbalance.model.User;
-import com.cloudbalance.repository.CloudAccountRepository;
-import com.cloudbalance.repository.CostExplorerRepository;
-import com.cloudbalance.repository.UserRepository;
+import com.cloudbalance.dto.CostRollupDTO;
+import com.cloudbalance.exception.BadRequestException;
+import com.cloudbalance.repository.CostStore;
+import com.cloudbalance.security.AccountEntitlement;
+import com.cloudbalance.security.AccountEntitlementCache;
 import com.cloudbalance.service.CostExplorerService;
 import com.cloudbalance.service.UserService;
 import lombok.RequiredArgsConstructor;
@@ -16,8 +34,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.math.BigDecimal;
-import java.time.format.DateTimeFormatter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -26,318 +45,344 @@ import java.util.stream.Collectors;
 @Slf4j
 public class CostExplorerServiceImpl implements CostExplorerService {
 
-    private final CostExplorerRepository costExplorerRepository;
-    private final CloudAccountRepository cloudAccountRepository;
+    private final CostStore costStore;
     private final UserService userService;
-    private final UserRepository userRepository;
+    private final AccountEntitlementCache accountEntitlementCache;
+    private final CostQueryBuilder costQueryBuilder;
+    private final CostResultCache costResultCache;
+    private final MonthlyCostCache monthlyCostCache;
+    private final FilterValueDictionary filterValueDictionary;
+    private final CascadingFilterIndex cascadingFilterIndex;
+    private final PartitionedCostExecutor partitionedCostExecutor;
+    private final CostQueryCoalescer costQueryCoalescer;
+    private final CostRollupRegistry costRollupRegistry;
+    private final CostQueryAdmission costQueryAdmission;
+    private final CostCube costCube;
+    private final CostQueryBatcher costQueryBatcher;
 
     @Override
-    @Transactional(readOnly = true)
     public CostExplorerResponseDTO getCostData(CostExplorerFilterDTO filter, Long userId) {
-        // Get user to check role
-        User user = userRepository.findById(userId)
-                .orElseThrow(() -> new RuntimeException("User not found"));
-
-        boolean isAdminOrReadOnly = user.getRole().getName().equals(Role.ROLE_ADMIN)
-                || user.getRole().getName().equals(Role.ROLE_READ_ONLY);
+        CostAggregator result = aggregate(filter, userId);
+        return result != null ? result.toResponse() : new CostExplorerResponseDTO();
+    }
 
-        // For customer role, filter by assigned accounts
-        if (!isAdminOrReadOnly) {
-            Set<CloudAccount> userAccounts = cloudAccountRepository.findByUserId(userId);
-            List<String> userAccountIds = userAccounts.stream()
-                    .map(CloudAccount::getAccountId)
-                    .collect(Collectors.toList());
-
-            // If user has no assigned accounts, return empty response
-            if (userAccountIds.isEmpty()) {
-                return new CostExplorerResponseDTO(); // Return empty response for users with no accounts
+    @Override
+    public List<CostExplorerResponseDTO> getCostDataBatch(List<CostExplorerFilterDTO> filters, Long userId) {
+        CostExplorerResponseDTO[] responses = new CostExplorerResponseDTO[filters.size()];
+        CostExplorerFilterDTO[] normalized = new CostExplorerFilterDTO[filters.size()];
+
+        // Cache misses grouped by everything except groupBy and topN; each group can share one scan
+        Map<CostExplorerFilterDTO, List<Integer>> shared = new LinkedHashMap<>();
+        for (int i = 0; i < filters.size(); i++) {
+            if (!restrictToUserAccounts(filters.get(i), userId)) {
+                responses[i] = new CostExplorerResponseDTO();
+                continue;
+            }
+            normalized[i] = costQueryBuilder.normalize(filters.get(i));
+            CostAggregator cached = costResultCache.getIfPresent(costResultCache.keyFor(normalized[i]));
+            if (cached != null) {
+                responses[i] = cached.toResponse();
+                continue;
             }
+            shared.computeIfAbsent(normalized[i].toBuilder().groupBy(null).topN(null).build(), k -> new ArrayList<>())
+                    .add(i);
+        }
 
-            // Always restrict to user's accounts, regardless of whether accountIds filter is provided
-            if (filter.getAccountIds() == null || filter.getAccountIds().isEmpty()) {
-                // No account filter provided, use all user's accounts
-                filter.setAccountIds(userAccountIds);
+        for (Map.Entry<CostExplorerFilterDTO, List<Integer>> group : shared.entrySet()) {
+            List<Integer> members = group.getValue();
+            if (members.size() > 1 && isBatchable(members, normalized)) {
+                executeBatch(group.getKey(), members, normalized, responses, userId);
             } else {
-                // Account filter provided, restrict to intersection with user's accounts
-                filter.getAccountIds().retainAll(userAccountIds);
-                if (filter.getAccountIds().isEmpty()) {
-                    return new CostExplorerResponseDTO(); // Return empty response
+                // Alone, or better served by the month cache, partitions or cube: the usual single-query path
+                for (int i : members) {
+                    responses[i] = getCostData(normalized[i], userId);
                 }
             }
         }
-
-        // Build SQL query
-        String sql = buildCostDataQuery(filter);
-        log.debug("Executing SQL query: {}", sql);
-
-        // Execute query
-        List<Map<String, Object>> rows = costExplorerRepository.getCostData(sql);
-
-        // Process results
-        return processCostData(rows);
+        return Arrays.asList(responses);
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public List<String> getDistinctValuesForField(String field) {
-        String columnName = getColumnNameForField(field);
-        return costExplorerRepository.getDistinctValuesForField(columnName);
+    public ColumnarCostResponseDTO getColumnarCostData(CostExplorerFilterDTO filter, Long userId) {
+        // Same (cached) result as getCostData, laid out as dense arrays of micros
+        CostAggregator result = aggregate(filter, userId);
+        return (result != null ? result : new CostAggregator()).toColumnar();
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public List<String> getAccountsForUser(Long userId) {
-        User user = userRepository.findById(userId)
-                .orElseThrow(() -> new RuntimeException("User not found"));
+    public long exportCostData(CostExplorerFilterDTO filter, Long userId, CostExportFormat format,
+                               OutputStream out) throws IOException {
+        try (CostExportWriter writer = new CostExportWriter(format, CostQueryBuilder.EXPORT_COLUMNS, out)) {
+            // Same account restriction as getCostData; nothing to export leaves just the header
+            if (!restrictToUserAccounts(filter, userId)) {
+                return 0;
+            }
 
-        if (user.getRole().getName().equals(Role.ROLE_ADMIN)
-                || user.getRole().getName().equals(Role.ROLE_READ_ONLY)) {
-            return costExplorerRepository.getAllAccountIds();
-        } else {
-            Set<CloudAccount> userAccounts = cloudAccountRepository.findByUserId(userId);
-            return userAccounts.stream()
-                    .map(CloudAccount::getAccountId)
-                    .collect(Collectors.toList());
+            // Exports are the heaviest scans, so they are always admitted as large queries
+            String roleName = accountEntitlementCache.get(userId).getRoleName();
+            long started = System.currentTimeMillis();
+            try (CostQueryAdmission.Permit permit = costQueryAdmission.acquireLarge(String.valueOf(userId), roleName)) {
+                costStore.streamExport(costQueryBuilder.buildExportQuery(filter), writer);
+            }
+            log.info("Exported {} cost rows as {} in {} ms",
+                    writer.getRowCount(), format, System.currentTimeMillis() - started);
+            return writer.getRowCount();
         }
     }
 
-    // Private helper methods
-    private String buildCostDataQuery(CostExplorerFilterDTO filter) {
-        StringBuilder sqlBuilder = new StringBuilder();
-
-        // Get the appropriate column for grouping
-        String groupByColumn = getColumnNameForField(filter.getGroupBy());
-
-        // Base SQL query
-        sqlBuilder.append("SELECT ");
-        sqlBuilder.append(groupByColumn).append(" AS group_key, ");
-        sqlBuilder.append("CONCAT(MYCLOUD_STARTMONTH, '-', MYCLOUD_STARTYEAR) AS time_period, ");
-        sqlBuilder.append("SUM(LINEITEM_UNBLENDEDCOST) AS total_cost ");
-        sqlBuilder.append("FROM cost_explorer");
-
-        // Build WHERE clause
-        List<String> whereConditions = new ArrayList<>();
-
-        // Account filter
-        if (filter.getAccountIds() != null && !filter.getAccountIds().isEmpty()) {
-            whereConditions.add("CAST(LINKEDACCOUNTID AS VARCHAR) IN (" +
-                    filter.getAccountIds().stream()
-                            .map(id -> "'" + id + "'")
-                            .collect(Collectors.joining(",")) + ")");
-        }
+    @Override
+    public int invalidateCachedCostData(String accountId, LocalDate from, LocalDate to) {
+        // Month segments record the accounts they cover, so only those that could include the account go.
+        // Cached filters hold normalised account ids.
+        String account = AccountIds.normalize(accountId);
+        int removedSegments = monthlyCostCache.invalidate(account, from, to);
+        return costResultCache.invalidate(account, from, to) + removedSegments;
+    }
 
-        // Date range filter
-        if (filter.getStartDate() != null && filter.getEndDate() != null) {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-            whereConditions.add("USAGESTARTDATE BETWEEN '" +
-                    filter.getStartDate().format(formatter) + "' AND '" +
-                    filter.getEndDate().format(formatter) + "'");
-        }
+    @Override
+    public List<CostRollupDTO> getCostRollups() {
+        return costRollupRegistry.getRollups().stream()
+                .map(this::toRollupDto)
+                .collect(Collectors.toList());
+    }
 
-        // Service filter
-        if (filter.getServices() != null && !filter.getServices().isEmpty()) {
-            whereConditions.add("PRODUCT_PRODUCTNAME IN (" +
-                    filter.getServices().stream()
-                            .map(service -> "'" + service + "'")
-                            .collect(Collectors.joining(",")) + ")");
-        }
+    @Override
+    public CostRollupDTO registerCostRollup(CostRollupDTO request) {
+        CostRollup rollup = costRollupRegistry.register(request.getName(), request.getFields());
+        // Built in the background; queries keep using the raw table, or the rollup it replaces, until it is ready
+        costRollupRegistry.refreshAsync(rollup);
+        return toRollupDto(rollup);
+    }
 
-        // Instance type filter
-        if (filter.getInstanceTypes() != null && !filter.getInstanceTypes().isEmpty()) {
-            whereConditions.add("MYCLOUD_INSTANCETYPE IN (" +
-                    filter.getInstanceTypes().stream()
-                            .map(type -> "'" + type + "'")
-                            .collect(Collectors.joining(",")) + ")");
-        }
+    @Override
+    public void unregisterCostRollup(String name) {
+        costRollupRegistry.unregister(name);
+    }
 
-        // Usage type filter
-        if (filter.getUsageTypes() != null && !filter.getUsageTypes().isEmpty()) {
-            whereConditions.add("LINEITEM_USAGETYPE IN (" +
-                    filter.getUsageTypes().stream()
-                            .map(type -> "'" + type + "'")
-                            .collect(Collectors.joining(",")) + ")");
+    @Override
+    @Transactional(readOnly = true)
+    public List<String> getDistinctValuesForField(String field) {
+        String columnName = CostDimension.fromField(field).getColumn();
+        if (filterValueDictionary.isLoaded()) {
+            return filterValueDictionary.getValues(columnName);
         }
+        return costStore.getDistinctValuesForField(columnName);
+    }
 
-        // Platform filter
-        if (filter.getPlatforms() != null && !filter.getPlatforms().isEmpty()) {
-            whereConditions.add("MYCLOUD_OPERATINGSYSTEM IN (" +
-                    filter.getPlatforms().stream()
-                            .map(os -> "'" + os + "'")
-                            .collect(Collectors.joining(",")) + ")");
+    @Override
+    @Transactional(readOnly = true)
+    public List<String> searchDistinctValuesForField(String field, String query, int limit) {
+        String columnName = CostDimension.fromField(field).getColumn();
+        if (filterValueDictionary.isLoaded()) {
+            return filterValueDictionary.search(columnName, query, limit);
         }
 
-        // Region filter
-        if (filter.getRegions() != null && !filter.getRegions().isEmpty()) {
-            whereConditions.add("MYCLOUD_REGIONNAME IN (" +
-                    filter.getRegions().stream()
-                            .map(region -> "'" + region + "'")
-                            .collect(Collectors.joining(",")) + ")");
-        }
+        // Dictionary not loaded yet: search the capped warehouse list instead
+        String needle = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+        return costStore.getDistinctValuesForField(columnName).stream()
+                .filter(value -> value != null && value.toLowerCase(Locale.ROOT).contains(needle))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
 
-        // Usage type group filter
-        if (filter.getUsageTypeGroups() != null && !filter.getUsageTypeGroups().isEmpty()) {
-            whereConditions.add("MYCLOUD_COST_EXPLORER_USAGE_GROUP_TYPE IN (" +
-                    filter.getUsageTypeGroups().stream()
-                            .map(group -> "'" + group + "'")
-                            .collect(Collectors.joining(",")) + ")");
+    @Override
+    public List<String> getCascadingValuesForField(String field, CostExplorerFilterDTO filter, Long userId) {
+        if (!restrictToUserAccounts(filter, userId)) {
+            return new ArrayList<>();
         }
 
-        // Purchase option filter
-        if (filter.getPurchaseOptions() != null && !filter.getPurchaseOptions().isEmpty()) {
-            whereConditions.add("MYCLOUD_PRICINGTYPE IN (" +
-                    filter.getPurchaseOptions().stream()
-                            .map(option -> "'" + option + "'")
-                            .collect(Collectors.joining(",")) + ")");
+        CostDimension dimension = CostDimension.fromField(field);
+        List<String> values = cascadingFilterIndex.getValues(dimension.getColumn(), filter);
+        if (values == null) {
+            // Index not loaded yet or the column is left out of it: unfiltered values are a superset of the cascading ones
+            values = new ArrayList<>(getDistinctValuesForField(field));
         }
 
-        // API operation filter
-        if (filter.getApiOperations() != null && !filter.getApiOperations().isEmpty()) {
-            whereConditions.add("LINEITEM_OPERATION IN (" +
-                    filter.getApiOperations().stream()
-                            .map(op -> "'" + op + "'")
-                            .collect(Collectors.joining(",")) + ")");
+        // A field's own filter doesn't narrow its dropdown, so customers' account values are restricted here
+        if (dimension == CostDimension.ACCOUNT_ID) {
+            AccountEntitlement entitlement = accountEntitlementCache.get(userId);
+            if (!entitlement.isAllAccounts()) {
+                values.retainAll(entitledAccountIds(entitlement));
+            }
         }
+        return values;
+    }
 
-        // Availability zone filter
-        if (filter.getAvailabilityZones() != null && !filter.getAvailabilityZones().isEmpty()) {
-            whereConditions.add("AVAILABILITYZONE IN (" +
-                    filter.getAvailabilityZones().stream()
-                            .map(az -> "'" + az + "'")
-                            .collect(Collectors.joining(",")) + ")");
+    @Override
+    public List<String> getAccountsForUser(Long userId) {
+        AccountEntitlement entitlement = accountEntitlementCache.get(userId);
+        if (entitlement.isAllAccounts()) {
+            return costStore.getAllAccountIds();
         }
+        return new ArrayList<>(entitlement.getAccountIds());
+    }
 
-        // Tenancy filter
-        if (filter.getTenancies() != null && !filter.getTenancies().isEmpty()) {
-            whereConditions.add("TENANCY IN (" +
-                    filter.getTenancies().stream()
-                            .map(tenancy -> "'" + tenancy + "'")
-                            .collect(Collectors.joining(",")) + ")");
-        }
+    // Private helper methods
 
-        // Add WHERE clause if needed
-        if (!whereConditions.isEmpty()) {
-            sqlBuilder.append(" WHERE ").append(String.join(" AND ", whereConditions));
+    // Ranked result for the filter, or null when the user has no accounts
+    private CostAggregator aggregate(CostExplorerFilterDTO filter, Long userId) {
+        // Customers only ever see their assigned accounts
+        if (!restrictToUserAccounts(filter, userId)) {
+            return null;
         }
 
-        // Group by
-        sqlBuilder.append(" GROUP BY group_key, time_period ");
+        // Normalized filter plus effective account set decides which callers can share a result
+        CostExplorerFilterDTO normalizedFilter = costQueryBuilder.normalize(filter);
+        CostResultCache.Key cacheKey = costResultCache.keyFor(normalizedFilter);
 
-        // Order by
-        sqlBuilder.append(" ORDER BY time_period, group_key ");
+        // Warehouse failures and cancellations propagate to GlobalExceptionHandler, so neither looks like zero spend.
+        // On a miss, identical concurrent requests share a single execution
+        return costResultCache.get(cacheKey,
+                () -> costQueryCoalescer.execute(cacheKey, () -> executeAdmitted(normalizedFilter, userId)));
+    }
 
-        // Limit results
-        sqlBuilder.append(" LIMIT 1000");
+    // Narrows a customer's account filter to their assigned accounts; false when nothing is left to show
+    private boolean restrictToUserAccounts(CostExplorerFilterDTO filter, Long userId) {
+        normalizeAccountIds(filter);
 
-        return sqlBuilder.toString();
-    }
+        // Cached role and account ids, no MySQL round trip per request
+        AccountEntitlement entitlement = accountEntitlementCache.get(userId);
 
-    private String getColumnNameForField(String field) {
-        Map<String, String> columnMappings = new HashMap<>();
-        columnMappings.put("Service", "PRODUCT_PRODUCTNAME");
-        columnMappings.put("InstanceType", "MYCLOUD_INSTANCETYPE");
-        columnMappings.put("AccountID", "LINKEDACCOUNTID");
-        columnMappings.put("UsageType", "LINEITEM_USAGETYPE");
-        columnMappings.put("Platform", "MYCLOUD_OPERATINGSYSTEM");
-        columnMappings.put("Region", "MYCLOUD_REGIONNAME");
-        columnMappings.put("UsageTypeGroup", "MYCLOUD_COST_EXPLORER_USAGE_GROUP_TYPE");
-        columnMappings.put("PurchaseOption", "MYCLOUD_PRICINGTYPE");
-        columnMappings.put("ApiOperation", "LINEITEM_OPERATION");
-        columnMappings.put("Resource", "PRODUCT_PRODUCTNAME"); // I might need to make adjustment here
-        columnMappings.put("AvailabilityZone", "AVAILABILITYZONE");
-        columnMappings.put("Tenancy", "TENANCY");
-        columnMappings.put("ChargeType", "CHARGE_TYPE");
-
-        return columnMappings.getOrDefault(field, "PRODUCT_PRODUCTNAME");
-    }
+        // For customer role, filter by assigned accounts
+        if (!entitlement.isAllAccounts()) {
+            // If user has no assigned accounts, there is nothing to show
+            if (entitlement.isEmpty()) {
+                return false;
+            }
 
-    private CostExplorerResponseDTO processCostData(List<Map<String, Object>> rows) {
-        CostExplorerResponseDTO response = new CostExplorerResponseDTO();
-
-        // Extract unique time periods
-        Set<String> timeUnitsSet = new TreeSet<>();
-        Map<String, Map<String, BigDecimal>> groupData = new HashMap<>();
-        Map<String, BigDecimal> totalsByTime = new HashMap<>();
-
-        for (Map<String, Object> row : rows) {
-            String groupKey = row.get("GROUP_KEY") != null ? row.get("GROUP_KEY").toString() : "Other";
-            String timePeriod = row.get("TIME_PERIOD").toString();
-
-            // Fix for ClassCastException - convert Double to BigDecimal properly
-            BigDecimal cost;
-            Object costObj = row.get("TOTAL_COST");
-            if (costObj instanceof BigDecimal) {
-                cost = (BigDecimal) costObj;
-            } else if (costObj instanceof Double) {
-                cost = BigDecimal.valueOf((Double) costObj);
+            // Always restrict to user's accounts, regardless of whether accountIds filter is provided
+            if (filter.getAccountIds() == null || filter.getAccountIds().isEmpty()) {
+                // No account filter provided, use all user's accounts
+                filter.setAccountIds(new ArrayList<>(entitlement.getAccountIds()));
             } else {
-                // Handle any other types if needed
-                cost = new BigDecimal(costObj.toString());
+                // Account filter provided, restrict to intersection with user's accounts
+                filter.getAccountIds().retainAll(entitledAccountIds(entitlement));
+                return !filter.getAccountIds().isEmpty();
             }
+        }
+        return true;
+    }
 
-            timeUnitsSet.add(timePeriod);
-
-            // Initialize group if not exists
-            groupData.putIfAbsent(groupKey, new HashMap<>());
-
-            // Add cost for this time period
-            groupData.get(groupKey).put(timePeriod, cost);
-
-            // Update totals
-            totalsByTime.putIfAbsent(timePeriod, BigDecimal.ZERO);
-            totalsByTime.put(timePeriod, totalsByTime.get(timePeriod).add(cost));
+    // Account ids must be numbers (LINKEDACCOUNTID is numeric); they are compared from here on without leading zeros
+    private static void normalizeAccountIds(CostExplorerFilterDTO filter) {
+        if (filter.getAccountIds() == null) {
+            return;
+        }
+        List<String> normalized = new ArrayList<>(filter.getAccountIds().size());
+        for (String accountId : filter.getAccountIds()) {
+            if (!AccountIds.isValid(accountId)) {
+                throw new BadRequestException("Invalid account id: " + accountId);
+            }
+            normalized.add(AccountIds.normalize(accountId));
         }
+        filter.setAccountIds(normalized);
+    }
 
-        // Convert to ordered list
-        List<String> timeUnits = new ArrayList<>(timeUnitsSet);
+    private static Set<String> entitledAccountIds(AccountEntitlement entitlement) {
+        return new HashSet<>(AccountIds.normalize(entitlement.getAccountIds()));
+    }
 
-        // Create groups
-        List<CostGroupDTO> groups = new ArrayList<>();
-        for (Map.Entry<String, Map<String, BigDecimal>> entry : groupData.entrySet()) {
-            CostGroupDTO group = new CostGroupDTO();
-            group.setKey(entry.getKey());
-            group.setValues(entry.getValue());
+    // Waits for a warehouse slot under the caller's per-user and per-role limits, then runs the query
+    private CostAggregator executeAdmitted(CostExplorerFilterDTO filter, Long userId) {
+        String roleName = accountEntitlementCache.get(userId).getRoleName();
+
+        // Every caller holds its own permit, batched or not, so its per-user and per-role limits always apply.
+        // A partitioned query is charged one slot per statement it may run at once
+        try (CostQueryAdmission.Permit permit = costQueryAdmission.acquire(String.valueOf(userId), roleName, filter,
+                partitionedCostExecutor.partitionCount(filter))) {
+            // Compatible warehouse queries from other users arriving next to each other may share one statement
+            if (takesDirectPath(filter)) {
+                return costQueryBatcher.execute(filter, () -> executeCostQuery(filter, permit.getSlots()));
+            }
+            return executeCostQuery(filter, permit.getSlots());
+        }
+    }
 
-            // Calculate group total
-            BigDecimal groupTotal = entry.getValue().values().stream()
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-            group.setTotal(groupTotal);
+    private CostAggregator executeCostQuery(CostExplorerFilterDTO filter, int parallelism) {
+        CostAggregator aggregator = new CostAggregator();
+        // Account totals come from the single-pass ranked query; the cached and partitioned paths can't total by account
+        boolean singlePass = Boolean.TRUE.equals(filter.getIncludeAccountTotals());
+
+        if (!singlePass && monthlyCostCache.isApplicable(filter)) {
+            // Closed months come from the month cache, only the remaining range hits Snowflake
+            monthlyCostCache.aggregate(filter, aggregator,
+                    (range, target) -> aggregateAllRows(range, target, parallelism));
+            // Segments hold every group, so rank over the whole range once they are merged
+            aggregator = aggregator.topN(filter.getTopN());
+        } else if (!singlePass && partitionedCostExecutor.isApplicable(filter)) {
+            // Long ranges and large account sets run as concurrent partitions
+            partitionedCostExecutor.aggregate(filter, aggregator, parallelism);
+            aggregator = aggregator.topN(filter.getTopN());
+        } else {
+            // Build parameterized SQL query
+            CostQuery query = costQueryBuilder.buildCostDataQuery(filter);
+            log.debug("Executing SQL query: {}", query.getSql());
 
-            groups.add(group);
+            // Stream rows straight into the aggregator; series, group, period and grand totals come in one pass
+            costStore.streamCostData(query, aggregator);
         }
 
-        response.setTimeUnits(timeUnits);
-        response.setGroups(groups);
-        response.setTotals(totalsByTime);
-        response.setTotalRecords(rows.size());
-
-        return response;
+        return aggregator;
     }
 
-    private List<CostGroupDTO> convertGroupsData(Map<String, Map<String, BigDecimal>> groupData, List<String> timeUnits) {
-        List<CostGroupDTO> groups = new ArrayList<>();
-
-        for (Map.Entry<String, Map<String, BigDecimal>> entry : groupData.entrySet()) {
-            CostGroupDTO group = new CostGroupDTO();
-            group.setKey(entry.getKey());
+    // Filters answered by the plain warehouse query: not by the month cache, partitions or cube, no account totals.
+    // Only these are combined with other queries.
+    private boolean takesDirectPath(CostExplorerFilterDTO filter) {
+        return !Boolean.TRUE.equals(filter.getIncludeAccountTotals())
+                && !monthlyCostCache.isApplicable(filter)
+                && !partitionedCostExecutor.isApplicable(filter)
+                && !costCube.canAnswer(filter);
+    }
 
-            // Ensure values for all time periods (set to zero if missing)
-            Map<String, BigDecimal> values = new HashMap<>();
-            for (String timeUnit : timeUnits) {
-                values.put(timeUnit, entry.getValue().getOrDefault(timeUnit, BigDecimal.ZERO));
+    private boolean isBatchable(List<Integer> members, CostExplorerFilterDTO[] normalized) {
+        for (int i : members) {
+            if (!takesDirectPath(normalized[i])) {
+                return false;
             }
-            group.setValues(values);
+        }
+        return true;
+    }
+
+    // One scan with a grouping set per distinct groupBy, ranked per widget and cached like single responses
+    private void executeBatch(CostExplorerFilterDTO shared, List<Integer> members, CostExplorerFilterDTO[] normalized,
+                              CostExplorerResponseDTO[] responses, Long userId) {
+        List<CostDimension> groupBys = new ArrayList<>(members.size());
+        for (int i : members) {
+            groupBys.add(CostDimension.fromField(normalized[i].getGroupBy()));
+        }
+        CostBatchAggregator batch = new CostBatchAggregator(groupBys);
+        CostQuery query = costQueryBuilder.buildBatchQuery(shared, batch.getColumns(), false);
 
-            // Calculate total
-            BigDecimal total = values.values().stream()
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-            group.setTotal(total);
+        String roleName = accountEntitlementCache.get(userId).getRoleName();
+        try (CostQueryAdmission.Permit permit =
+                     costQueryAdmission.acquire(String.valueOf(userId), roleName, shared)) {
+            costStore.streamCostBatch(query, batch);
+        }
 
-            groups.add(group);
+        for (int i : members) {
+            CostAggregator ranked = batch.get(groupBys.get(members.indexOf(i))).topN(normalized[i].getTopN());
+            responses[i] = costResultCache.get(costResultCache.keyFor(normalized[i]), () -> ranked).toResponse();
         }
+        log.debug("Answered {} cost queries with one batch query [{}]", members.size(), query.getShapeKey());
+    }
 
-        // Sort groups by total cost descending
-        groups.sort((g1, g2) -> g2.getTotal().compareTo(g1.getTotal()));
+    // Every group_key x time_period row for the filter, split into partitions when it is large
+    private void aggregateAllRows(CostExplorerFilterDTO filter, CostAggregator aggregator, int parallelism) {
+        if (partitionedCostExecutor.isApplicable(filter)) {
+            partitionedCostExecutor.aggregate(filter, aggregator, parallelism);
+        } else {
+            costStore.streamCostData(costQueryBuilder.buildCostDataQuery(filter, false), aggregator);
+        }
+    }
 
-        return groups;
+    private CostRollupDTO toRollupDto(CostRollup rollup) {
+        return CostRollupDTO.builder()
+                .name(rollup.getName())
+                .fields(rollup.getDimensions().stream().map(CostDimension::getField).collect(Collectors.toList()))
+                .tableName(rollup.getTableName())
+                .ready(rollup.isReady())
+                .rowCount(rollup.getRowCount())
+                .refreshedAt(rollup.getRefreshedAt())
+                .build();
     }
 }
@@ -14,6 +14,7 @@ import com.cloudbalance.repository.CloudAccountRepository;
 import com.cloudbalance.repository.RoleRepository;
 import com.cloudbalance.repository.UserRepository;
 import com.cloudbalance.repository.UserSessionRepository;
+import com.cloudbalance.security.AccountEntitlementCache;
 import com.cloudbalance.service.UserService;
 import com.cloudbalance.service.UserSessionService;
 import jakarta.servlet.http.HttpServletRequest;
@@ -51,6 +52,7 @@ public class UserServiceImpl implements UserService {
     private final PasswordEncoder passwordEncoder;
     private final PasswordResetTokenRepository passwordResetTokenRepository;
     private final EmailService emailService;
+    private final AccountEntitlementCache accountEntitlementCache;
 
     LocalDateTime now = LocalDateTime.now();
 
@@ -166,6 +168,7 @@ public class UserServiceImpl implements UserService {
 
         User savedUser = userRepository.save(user);
         log.info("Created new user: {}", savedUser.getUsername());
+        accountEntitlementCache.invalidateAfterCommit(savedUser.getId());
 
         return mapUserToDto(savedUser);
     }
@@ -279,6 +282,8 @@ private boolean isLastAdmin(Long userId, String newRoleName) {
 
         User updatedUser = userRepository.save(user);
         log.info("Updated user: {}", updatedUser.getUsername());
+        // Role, account or username changes all affect cost explorer access
+        accountEntitlementCache.invalidateAfterCommit(id);
 
         return mapUserToDto(updatedUser);
     }
@@ -309,6 +314,7 @@ private boolean isLastAdmin(Long userId, String newRoleName) {
 
         User updatedUser = userRepository.save(user);
         log.info("Assigned accounts to user: {}", updatedUser.getUsername());
+        accountEntitlementCache.invalidateAfterCommit(userId);
 
         return mapUserToDto(updatedUser);
     }
@@ -334,6 +340,7 @@ private boolean isLastAdmin(Long userId, String newRoleName) {
 
         User updatedUser = userRepository.save(user);
         log.info("Removed accounts from user: {}", updatedUser.getUsername());
+        accountEntitlementCache.invalidateAfterCommit(userId);
 
         return mapUserToDto(updatedUser);
     }
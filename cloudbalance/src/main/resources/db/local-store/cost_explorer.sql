@@ -0,0 +1,22 @@
+-- Same columns as the Snowflake cost_explorer table, for the embedded local cost store
+CREATE TABLE cost_explorer (
+    USAGESTARTDATE TIMESTAMP NOT NULL,
+    MYCLOUD_STARTYEAR INT NOT NULL,
+    MYCLOUD_STARTMONTH INT NOT NULL,
+    LINKEDACCOUNTID BIGINT NOT NULL,
+    PRODUCT_PRODUCTNAME VARCHAR(255),
+    MYCLOUD_INSTANCETYPE VARCHAR(255),
+    LINEITEM_USAGETYPE VARCHAR(255),
+    MYCLOUD_OPERATINGSYSTEM VARCHAR(255),
+    MYCLOUD_REGIONNAME VARCHAR(255),
+    MYCLOUD_COST_EXPLORER_USAGE_GROUP_TYPE VARCHAR(255),
+    MYCLOUD_PRICINGTYPE VARCHAR(255),
+    LINEITEM_OPERATION VARCHAR(255),
+    AVAILABILITYZONE VARCHAR(255),
+    TENANCY VARCHAR(255),
+    CHARGE_TYPE VARCHAR(255),
+    LINEITEM_UNBLENDEDCOST DECIMAL(38, 10) NOT NULL
+);
+
+CREATE INDEX idx_cost_explorer_usage_date ON cost_explorer (USAGESTARTDATE);
+CREATE INDEX idx_cost_explorer_account ON cost_explorer (LINKEDACCOUNTID, USAGESTARTDATE);
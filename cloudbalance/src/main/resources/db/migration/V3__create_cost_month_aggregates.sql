@@ -0,0 +1,15 @@
+-- Create cost_month_aggregates table (closed-month cost explorer cache)
+-- IF NOT EXISTS: databases whose schema came from ddl-auto may already have it
+CREATE TABLE IF NOT EXISTS cost_month_aggregates (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    cache_key VARCHAR(64) NOT NULL,
+    segment_start DATE NOT NULL,
+    segment_end DATE NOT NULL,
+    account_ids LONGTEXT NULL,
+    row_count INT NOT NULL,
+    payload LONGTEXT NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP NULL,
+    CONSTRAINT uk_cost_month_aggregates_segment UNIQUE (cache_key, segment_start, segment_end),
+    INDEX idx_cost_month_aggregates_range (segment_start, segment_end)
+);
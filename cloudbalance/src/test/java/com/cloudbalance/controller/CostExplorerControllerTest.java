@@ -0,0 +1,207 @@
+package com.cloudbalance.controller;
+
+import com.cloudbalance.config.SecurityConfig;
+import com.cloudbalance.costexplorer.CostExportFormat;
+import com.cloudbalance.costexplorer.CostQueryCancelledException;
+import com.cloudbalance.costexplorer.CostQueryCanceller;
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.cloudbalance.exception.GlobalExceptionHandler;
+import com.cloudbalance.security.AccountEntitlementCache;
+import com.cloudbalance.security.CustomAuthenticationFilter;
+import com.cloudbalance.security.CustomUserDetailsService;
+import com.cloudbalance.service.CostExplorerService;
+import com.cloudbalance.service.UserSessionService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// Cost queries answer through a DeferredResult: the async re-dispatch must pass security without a session,
+// and cancelled queries must be reported, never returned as empty data. Exports are only gzipped on request.
+@WebMvcTest(CostExplorerController.class)
+class CostExplorerControllerTest {
+
+    private static final String TOKEN = "token";
+    private static final Long USER_ID = 7L;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private UserSessionService userSessionService;
+
+    @MockitoBean
+    private CustomUserDetailsService customUserDetailsService;
+
+    @MockitoBean
+    private AccountEntitlementCache accountEntitlementCache;
+
+    @MockitoBean
+    private CostExplorerService costExplorerService;
+
+    @BeforeEach
+    void authenticate() {
+        when(userSessionService.validateSessionToken(TOKEN)).thenReturn("alice");
+        when(customUserDetailsService.loadUserByUsername("alice"))
+                .thenReturn(User.withUsername("alice").password("unused").roles("ADMIN").build());
+        when(accountEntitlementCache.getUserId("alice")).thenReturn(USER_ID);
+    }
+
+    @Test
+    void asyncDispatchOfAuthenticatedRequestSucceeds() throws Exception {
+        when(costExplorerService.getCostData(any(), eq(USER_ID)))
+                .thenReturn(CostExplorerResponseDTO.builder().grandTotal(new BigDecimal("12.5")).build());
+
+        MvcResult started = mockMvc.perform(costData("{}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.grandTotal").value(12.5));
+    }
+
+    @Test
+    void unauthenticatedRequestIsRejectedBeforeTheQueryRuns() throws Exception {
+        mockMvc.perform(post("/api/cost-explorer/data").contentType(MediaType.APPLICATION_JSON).content("{}"))
+                .andExpect(status().is4xxClientError())
+                .andExpect(request().asyncNotStarted());
+    }
+
+    @Test
+    void newerRequestWithTheSameQueryKeySupersedesTheOlder() throws Exception {
+        when(costExplorerService.getCostData(any(), eq(USER_ID))).thenAnswer(invocation -> {
+            CostExplorerFilterDTO filter = invocation.getArgument(0);
+            if ("Service".equals(filter.getGroupBy())) {
+                // The older request runs until the newer one cancels it
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (!CostQueryCanceller.isCurrentCancelled() && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                throw new CostQueryCancelledException(CostQueryCanceller.current().getCancelReason(), null);
+            }
+            return CostExplorerResponseDTO.builder().grandTotal(BigDecimal.ONE).build();
+        });
+
+        MvcResult older = mockMvc.perform(costData("{\"groupBy\":\"Service\"}").header("X-Cost-Query-Key", "chart"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult newer = mockMvc.perform(costData("{\"groupBy\":\"Region\"}").header("X-Cost-Query-Key", "chart"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(older)).andExpect(status().isConflict());
+        mockMvc.perform(asyncDispatch(newer)).andExpect(status().isOk());
+    }
+
+    @Test
+    void missedDeadlineIsAGatewayTimeout() throws Exception {
+        when(costExplorerService.getCostData(any(), eq(USER_ID)))
+                .thenThrow(new CostQueryCancelledException(CostQueryCanceller.DEADLINE, null));
+
+        MvcResult started = mockMvc.perform(costData("{}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started)).andExpect(status().isGatewayTimeout());
+    }
+
+    @Test
+    void disconnectIsNotReportedAsSuperseded() throws Exception {
+        when(costExplorerService.getCostData(any(), eq(USER_ID)))
+                .thenThrow(new CostQueryCancelledException(CostQueryCanceller.DISCONNECTED, null));
+
+        MvcResult started = mockMvc.perform(costData("{}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(jsonPath("$.message").value("The cost query was cancelled because the client disconnected."));
+    }
+
+    @Test
+    void exportIsGzippedOnlyWhenTheClientAcceptsIt() throws Exception {
+        when(costExplorerService.exportCostData(any(), eq(USER_ID), eq(CostExportFormat.CSV), any()))
+                .thenAnswer(invocation -> {
+                    OutputStream out = invocation.getArgument(3);
+                    out.write("a,b\n".getBytes(StandardCharsets.UTF_8));
+                    return 1L;
+                });
+
+        MvcResult plain = mockMvc.perform(export()).andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(plain))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(content().string("a,b\n"));
+
+        MvcResult gzipped = mockMvc.perform(export().header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        byte[] body = mockMvc.perform(asyncDispatch(gzipped))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn().getResponse().getContentAsByteArray();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            assertEquals("a,b\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static MockHttpServletRequestBuilder export() {
+        return post("/api/cost-explorer/export")
+                .header("Authorization", "Bearer " + TOKEN)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{}");
+    }
+
+    private static MockHttpServletRequestBuilder costData(String filter) {
+        return post("/api/cost-explorer/data")
+                .header("Authorization", "Bearer " + TOKEN)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(filter);
+    }
+
+    // Only the web layer under test; the application class would also start JPA
+    @Configuration
+    @Import({CostExplorerController.class, GlobalExceptionHandler.class, SecurityConfig.class,
+            CustomAuthenticationFilter.class, CostQueryCanceller.class})
+    static class WebLayer {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
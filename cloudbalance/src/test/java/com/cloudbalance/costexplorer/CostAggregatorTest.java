@@ -0,0 +1,203 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.cloudbalance.dto.CostGroupDTO;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Long micro-unit aggregation must match summing the line items as BigDecimal, to the cent
+class CostAggregatorTest {
+
+    private static final BigDecimal CENT = new BigDecimal("0.01");
+
+    @Test
+    void matchesBigDecimalReferenceToTheCent() {
+        Random random = new Random(42);
+        List<String> groups = names("service-", 300);
+        List<String> periods = names("", 24);
+
+        // Line items with 10 decimals, including credits
+        Map<String, Map<String, BigDecimal>> reference = new LinkedHashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            String group = groups.get(random.nextInt(groups.size()));
+            String period = periods.get(random.nextInt(periods.size()));
+            BigDecimal cost = BigDecimal.valueOf(random.nextLong(-5_000_000_000_000L, 500_000_000_000_000L), 10);
+            reference.computeIfAbsent(group, g -> new LinkedHashMap<>()).merge(period, cost, BigDecimal::add);
+        }
+
+        // The warehouse rounds each group_key x time_period sum once, like CostMicros.SUM_SQL
+        CostAggregator aggregator = new CostAggregator();
+        reference.forEach((group, cells) -> cells.forEach((period, sum) ->
+                aggregator.add(group, period, CostMicros.fromDecimal(sum))));
+        CostExplorerResponseDTO response = aggregator.toResponse();
+
+        Map<String, BigDecimal> referenceTotals = new LinkedHashMap<>();
+        for (CostGroupDTO group : response.getGroups()) {
+            Map<String, BigDecimal> expected = reference.get(group.getKey());
+            BigDecimal expectedTotal = BigDecimal.ZERO;
+            for (Map.Entry<String, BigDecimal> cell : expected.entrySet()) {
+                assertCents(cell.getValue(), group.getValues().get(cell.getKey()));
+                expectedTotal = expectedTotal.add(cell.getValue());
+                referenceTotals.merge(cell.getKey(), cell.getValue(), BigDecimal::add);
+            }
+            assertCents(expectedTotal, group.getTotal());
+        }
+        assertEquals(reference.size(), response.getGroups().size());
+        referenceTotals.forEach((period, total) -> assertCents(total, response.getTotals().get(period)));
+    }
+
+    @Test
+    void mergingPartialAggregatesIsExact() {
+        Random random = new Random(7);
+        CostAggregator whole = new CostAggregator();
+        CostAggregator[] partitions = {new CostAggregator(), new CostAggregator(), new CostAggregator()};
+
+        for (int i = 0; i < 50_000; i++) {
+            String group = "account-" + random.nextInt(40);
+            String period = random.nextInt(1, 13) + "-2024";
+            long micros = random.nextLong(-1_000_000, 900_000_000_000L);
+            whole.add(group, period, micros);
+            partitions[random.nextInt(partitions.length)].add(group, period, micros);
+        }
+
+        CostAggregator merged = new CostAggregator();
+        for (CostAggregator partition : partitions) {
+            merged.merge(partition);
+        }
+
+        CostExplorerResponseDTO expected = whole.toResponse();
+        CostExplorerResponseDTO actual = merged.toResponse();
+        assertEquals(expected.getTotals(), actual.getTotals());
+        for (CostGroupDTO group : expected.getGroups()) {
+            CostGroupDTO mergedGroup = actual.getGroups().stream()
+                    .filter(g -> g.getKey().equals(group.getKey()))
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(group.getValues(), mergedGroup.getValues());
+            assertEquals(group.getTotal(), mergedGroup.getTotal());
+        }
+    }
+
+    @Test
+    void topNKeepsGrandTotal() {
+        CostAggregator aggregator = new CostAggregator();
+        for (int g = 0; g < 50; g++) {
+            aggregator.add("group-" + g, "1-2024", (g + 1) * 1_234_567L);
+            aggregator.add("group-" + g, "2-2024", (g + 1) * 7_654_321L);
+        }
+
+        CostExplorerResponseDTO all = aggregator.toResponse();
+        CostExplorerResponseDTO top = aggregator.topN(10).toResponse();
+
+        assertEquals(11, top.getGroups().size());
+        assertEquals("group-49", top.getGroups().stream()
+                .filter(g -> !g.getKey().equals(CostAggregator.OTHER_GROUP))
+                .max((a, b) -> a.getTotal().compareTo(b.getTotal()))
+                .orElseThrow()
+                .getKey());
+        assertTrue(top.getGroups().stream().anyMatch(g -> g.getKey().equals(CostAggregator.OTHER_GROUP)));
+        assertEquals(all.getTotals(), top.getTotals());
+    }
+
+    @Test
+    void readsPositionalColumnsFromResultSet() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString(1)).thenReturn("AmazonEC2", (String) null);
+        when(rs.getString(2)).thenReturn("1-2024", "1-2024");
+        when(rs.getLong(3)).thenReturn(12_345_678L, 1L);
+
+        CostAggregator aggregator = new CostAggregator();
+        aggregator.processRow(rs);
+        aggregator.processRow(rs);
+        CostExplorerResponseDTO response = aggregator.toResponse();
+
+        assertEquals(new BigDecimal("12.345678"), response.getGroups().get(0).getTotal());
+        // Null group keys are reported as "Other"
+        assertEquals(CostAggregator.OTHER_GROUP, response.getGroups().get(1).getKey());
+        assertEquals(new BigDecimal("12.345679"), response.getTotals().get("1-2024"));
+        assertEquals(2, response.getTotalRecords());
+    }
+
+    @Test
+    void levelledRowsReplaceJavaTotals() throws Exception {
+        // Cells, then group, period, grand and account totals, as the ranked query returns them
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getInt(4)).thenReturn(CostAggregator.CELL, CostAggregator.CELL, CostAggregator.GROUP_TOTAL,
+                CostAggregator.PERIOD_TOTAL, CostAggregator.GRAND_TOTAL, CostAggregator.ACCOUNT_TOTAL);
+        when(rs.getString(1)).thenReturn("AmazonEC2", "AmazonEC2", "AmazonEC2", null, null, null);
+        when(rs.getString(2)).thenReturn("1-2024", "2-2024", null, "1-2024", null, null);
+        when(rs.getLong(3)).thenReturn(1_000_000L, 2_000_000L, 3_000_001L, 1_000_001L, 3_000_001L, 3_000_001L);
+        when(rs.getString(5)).thenReturn("123456789012");
+
+        CostAggregator aggregator = new CostAggregator();
+        for (int row = 0; row < 6; row++) {
+            aggregator.levelledRows().processRow(rs);
+        }
+        CostExplorerResponseDTO response = aggregator.toResponse();
+
+        assertEquals(1, response.getGroups().size());
+        assertEquals(2, response.getTotalRecords());
+        // Rounded once by the warehouse rather than summed from rounded cells
+        assertEquals(new BigDecimal("3.000001"), response.getGroups().get(0).getTotal());
+        assertEquals(new BigDecimal("1.000001"), response.getTotals().get("1-2024"));
+        // Periods without a warehouse total fall back to the cell sum
+        assertEquals(new BigDecimal("2.000000"), response.getTotals().get("2-2024"));
+        assertEquals(new BigDecimal("3.000001"), response.getGrandTotal());
+        assertEquals(Map.of("123456789012", new BigDecimal("3.000001")), response.getAccountTotals());
+    }
+
+    @Test
+    void grandTotalIsSummedWithoutWarehouseTotals() {
+        CostAggregator aggregator = new CostAggregator();
+        aggregator.add("a", "1-2024", 1_500_000L);
+        aggregator.add("b", "2-2024", 2_500_000L);
+
+        CostExplorerResponseDTO response = aggregator.toResponse();
+
+        assertEquals(new BigDecimal("4.000000"), response.getGrandTotal());
+        assertEquals(null, response.getAccountTotals());
+    }
+
+    @Test
+    void overflowIsDetected() {
+        CostAggregator aggregator = new CostAggregator();
+        aggregator.add("group", "1-2024", Long.MAX_VALUE);
+
+        assertThrows(ArithmeticException.class, () -> aggregator.add("group", "1-2024", 1));
+    }
+
+    @Test
+    void microConversionRoundsHalfUp() {
+        assertEquals(1_234_568L, CostMicros.fromDecimal(new BigDecimal("1.2345675")));
+        assertEquals(-1_234_568L, CostMicros.fromDecimal(new BigDecimal("-1.2345675")));
+        assertEquals(new BigDecimal("1.234568"), CostMicros.toDecimal(1_234_568L));
+    }
+
+    private static void assertCents(BigDecimal expected, BigDecimal actual) {
+        assertEquals(expected.setScale(2, RoundingMode.HALF_UP), actual.setScale(2, RoundingMode.HALF_UP),
+                () -> "expected " + expected + " but was " + actual);
+        assertTrue(expected.subtract(actual).abs().compareTo(CENT) < 0);
+    }
+
+    private static List<String> names(String prefix, int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            names.add(prefix + i);
+        }
+        return names;
+    }
+}
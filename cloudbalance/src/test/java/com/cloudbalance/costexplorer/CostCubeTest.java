@@ -0,0 +1,100 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Month and account lookups must give the same cells as filtering every row, and account ids match the way the
+// numeric warehouse column does
+class CostCubeTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final CostCube cube = new CostCube(jdbcTemplate, true);
+
+    @BeforeEach
+    void load() {
+        // Loaded out of month and account order
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            handler.processRow(row(2024, 2, "222", "EC2", 2_000_000));
+            handler.processRow(row(2024, 1, "111", "EC2", 1_000_000));
+            handler.processRow(row(2024, 3, "111", "S3", 4_000_000));
+            handler.processRow(row(2024, 1, "222", "S3", 500_000));
+            handler.processRow(row(2024, 2, "111", "S3", 250_000));
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class));
+        cube.refresh();
+    }
+
+    @Test
+    void readsOnlyTheFilteredMonths() {
+        CostAggregator aggregator = aggregate(filter(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 2, 29), null));
+
+        Map<String, BigDecimal> totals = aggregator.toResponse().getTotals();
+        assertDecimal("1.5", totals.get("1-2024"));
+        assertDecimal("2.25", totals.get("2-2024"));
+        assertEquals(2, totals.size());
+    }
+
+    @Test
+    void readsOnlyTheFilteredAccounts() {
+        CostAggregator aggregator = aggregate(filter(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 3, 31), List.of("111")));
+
+        assertDecimal("5.25", aggregator.toResponse().getGrandTotal());
+    }
+
+    @Test
+    void accountIdsWithLeadingZerosMatch() {
+        CostAggregator aggregator = aggregate(filter(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 3, 31), List.of("0222")));
+
+        assertDecimal("2.5", aggregator.toResponse().getGrandTotal());
+    }
+
+    private CostAggregator aggregate(CostExplorerFilterDTO filter) {
+        CostAggregator aggregator = new CostAggregator();
+        cube.aggregate(filter, 0, aggregator);
+        return aggregator;
+    }
+
+    private static CostExplorerFilterDTO filter(LocalDate start, LocalDate end, List<String> accountIds) {
+        return CostExplorerFilterDTO.builder()
+                .groupBy("Service")
+                .accountIds(accountIds)
+                .startDate(start)
+                .endDate(end)
+                .build();
+    }
+
+    // year, month, time_period, account, service, region, usage type, instance type, pricing type, cost micros
+    private static ResultSet row(int year, int month, String accountId, String service, long costMicros)
+            throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getInt(1)).thenReturn(year);
+        when(rs.getInt(2)).thenReturn(month);
+        when(rs.getString(3)).thenReturn(month + "-" + year);
+        when(rs.getString(4)).thenReturn(accountId);
+        when(rs.getString(5)).thenReturn(service);
+        when(rs.getLong(CostCube.DIMENSIONS.size() + 4)).thenReturn(costMicros);
+        return rs;
+    }
+
+    private static void assertDecimal(String expected, BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual), () -> expected + " != " + actual);
+    }
+}
@@ -0,0 +1,150 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.exception.TooManyRequestsException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Statements running at once stay within the slot, user, role and large-query bounds; overflow is a 429
+class CostQueryAdmissionTest {
+
+    private static final CostExplorerFilterDTO SMALL = CostExplorerFilterDTO.builder()
+            .accountIds(List.of("1"))
+            .startDate(LocalDate.of(2024, 1, 1))
+            .endDate(LocalDate.of(2024, 3, 31))
+            .build();
+    // No account filter over a year: 12 x all accounts
+    private static final CostExplorerFilterDTO LARGE = CostExplorerFilterDTO.builder()
+            .startDate(LocalDate.of(2024, 1, 1))
+            .endDate(LocalDate.of(2024, 12, 31))
+            .build();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void estimatesAccountMonths() {
+        CostQueryAdmission admission = admission(8, 4, 4, 100, 15_000, "");
+
+        assertEquals(3, admission.estimate(SMALL));
+        assertEquals(12_000, admission.estimate(LARGE));
+    }
+
+    @Test
+    void partitionedQueriesTakeOneSlotPerStatementUpToTheCap() {
+        CostQueryAdmission admission = admission(8, 4, 4, 100, 15_000, "");
+
+        try (CostQueryAdmission.Permit single = admission.acquire("alice", "ROLE_ADMIN", SMALL);
+             CostQueryAdmission.Permit partitioned = admission.acquire("alice", "ROLE_ADMIN", SMALL, 12)) {
+            assertEquals(1, single.getSlots());
+            assertEquals(4, partitioned.getSlots());
+        }
+    }
+
+    @Test
+    void queryWaitsUntilEnoughSlotsAreFree() throws Exception {
+        CostQueryAdmission admission = admission(4, 4, 4, 100, 15_000, "");
+        CostQueryAdmission.Permit wide = admission.acquire("alice", "ROLE_ADMIN", SMALL, 4);
+
+        CompletableFuture<CostQueryAdmission.Permit> waiting =
+                CompletableFuture.supplyAsync(() -> admission.acquire("bob", "ROLE_ADMIN", SMALL), executor);
+        assertThrows(TimeoutException.class, () -> waiting.get(300, TimeUnit.MILLISECONDS));
+
+        wide.close();
+        waiting.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    void userOverItsLimitWaitsWhileOthersRun() {
+        CostQueryAdmission admission = admission(8, 4, 1, 100, 200, "");
+
+        try (CostQueryAdmission.Permit running = admission.acquire("alice", "ROLE_ADMIN", SMALL)) {
+            TooManyRequestsException rejected = assertThrows(TooManyRequestsException.class,
+                    () -> admission.acquire("alice", "ROLE_ADMIN", SMALL));
+            assertTrue(rejected.getRetryAfterSeconds() >= 1);
+            admission.acquire("bob", "ROLE_ADMIN", SMALL).close();
+        }
+    }
+
+    @Test
+    void roleLimitHoldsAcrossUsers() {
+        CostQueryAdmission admission = admission(8, 4, 4, 100, 200, "ROLE_READ_ONLY:1");
+
+        try (CostQueryAdmission.Permit running = admission.acquire("alice", "ROLE_READ_ONLY", SMALL)) {
+            assertThrows(TooManyRequestsException.class, () -> admission.acquire("bob", "ROLE_READ_ONLY", SMALL));
+            admission.acquire("carol", "ROLE_ADMIN", SMALL).close();
+        }
+    }
+
+    @Test
+    void largeQueriesAreBoundedAsAClass() {
+        CostQueryAdmission admission = admission(8, 4, 4, 100, 200, "");
+
+        try (CostQueryAdmission.Permit first = admission.acquire("alice", "ROLE_ADMIN", LARGE);
+             CostQueryAdmission.Permit second = admission.acquire("bob", "ROLE_ADMIN", LARGE)) {
+            assertThrows(TooManyRequestsException.class, () -> admission.acquire("carol", "ROLE_ADMIN", LARGE));
+            admission.acquire("carol", "ROLE_ADMIN", SMALL).close();
+        }
+    }
+
+    @Test
+    void exportsAreAdmittedAsLargeWhateverTheFilter() {
+        CostQueryAdmission admission = admission(8, 4, 4, 100, 200, "");
+
+        try (CostQueryAdmission.Permit first = admission.acquireLarge("alice", "ROLE_ADMIN");
+             CostQueryAdmission.Permit second = admission.acquire("bob", "ROLE_ADMIN", LARGE)) {
+            assertThrows(TooManyRequestsException.class, () -> admission.acquireLarge("carol", "ROLE_ADMIN"));
+            admission.acquire("carol", "ROLE_ADMIN", SMALL).close();
+        }
+    }
+
+    @Test
+    void fullQueueIsRejectedAtOnce() {
+        CostQueryAdmission admission = admission(1, 1, 4, 0, 15_000, "");
+
+        long started = System.nanoTime();
+        assertThrows(TooManyRequestsException.class, () -> admission.acquire("alice", "ROLE_ADMIN", SMALL));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void cancelledRequestLeavesTheQueue() throws Exception {
+        CostQueryAdmission admission = admission(1, 1, 4, 100, 15_000, "");
+        CostQueryContext context = new CostQueryContext(null, 60_000);
+
+        try (CostQueryAdmission.Permit running = admission.acquire("alice", "ROLE_ADMIN", SMALL)) {
+            CompletableFuture<CostQueryAdmission.Permit> waiting = CompletableFuture.supplyAsync(
+                    () -> CostQueryCanceller.callWith(context, () -> admission.acquire("bob", "ROLE_ADMIN", SMALL)),
+                    executor);
+            context.cancel(CostQueryCanceller.DISCONNECTED);
+
+            Exception failure = assertThrows(Exception.class, () -> waiting.get(5, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof CostQueryCancelledException);
+        }
+        // The cancelled waiter holds no slot
+        admission.acquire("carol", "ROLE_ADMIN", SMALL).close();
+    }
+
+    private static CostQueryAdmission admission(int maxConcurrent, int maxSlotsPerQuery, int maxPerUser,
+                                                int queueCapacity, long maxWaitMillis, String roleLimits) {
+        return new CostQueryAdmission(new SimpleMeterRegistry(), true, maxConcurrent, maxSlotsPerQuery, 2, maxPerUser,
+                roleLimits, queueCapacity, 20, maxWaitMillis, 5_000, 120);
+    }
+}
@@ -0,0 +1,198 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.dto.CostGroupDTO;
+import com.cloudbalance.repository.CostStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Batched callers only ever see their own accounts' rows; a lone query never waits, and a failed or oversized
+// batch falls back to each caller's own query
+class CostQueryBatcherTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CostStore costStore = mock(CostStore.class);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void disabledBatcherRunsEveryQueryAlone() {
+        CostQueryBatcher batcher = batcher(false, 200_000);
+        CostAggregator alone = new CostAggregator();
+
+        assertSame(alone, batcher.execute(filter("1", 25), () -> alone));
+        verify(costStore, never()).streamCostBatch(any(), any());
+    }
+
+    @Test
+    void loneQueryDoesNotWaitForAWindow() {
+        CostQueryBatcher batcher = batcher(true, 200_000);
+        CostAggregator alone = new CostAggregator();
+
+        long started = System.nanoTime();
+        assertSame(alone, batcher.execute(filter("1", 25), () -> alone));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(2));
+        verify(costStore, never()).streamCostBatch(any(), any());
+    }
+
+    @Test
+    void batchedCallersGetOnlyTheirOwnAccountsRanked() throws Exception {
+        CostQueryBatcher batcher = batcher(true, 200_000);
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            handler.processRow(row("EC2", 1_000_000, "1"));
+            handler.processRow(row("S3", 2_000_000, "2"));
+            handler.processRow(row("EC2", 4_000_000, "2"));
+            handler.processRow(row("RDS", 8_000_000, "3"));
+            return null;
+        }).when(costStore).streamCostBatch(any(), any());
+
+        List<CostAggregator> results = withQueryInFlight(batcher, () -> {
+            CompletableFuture<CostAggregator> first = CompletableFuture.supplyAsync(
+                    () -> batcher.execute(filter("1", 25), CostQueryBatcherTest::unexpected), executor);
+            CompletableFuture<CostAggregator> second = CompletableFuture.supplyAsync(
+                    () -> batcher.execute(filter("2", 1), CostQueryBatcherTest::unexpected), executor);
+            return List.of(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+        });
+
+        assertEquals(0, new BigDecimal("1").compareTo(results.get(0).toResponse().getGrandTotal()));
+        assertEquals(List.of("EC2"), groupKeys(results.get(0)));
+        // Ranked to the top group plus "Other"
+        assertEquals(0, new BigDecimal("6").compareTo(results.get(1).toResponse().getGrandTotal()));
+        assertEquals(List.of("EC2", CostAggregator.OTHER_GROUP), groupKeys(results.get(1)));
+        verify(costStore).streamCostBatch(any(), any());
+    }
+
+    @Test
+    void oversizedBatchFallsBackToEachCallersOwnQuery() throws Exception {
+        CostQueryBatcher batcher = batcher(true, 1);
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            handler.processRow(row("EC2", 1_000_000, "1"));
+            handler.processRow(row("S3", 2_000_000, "2"));
+            return null;
+        }).when(costStore).streamCostBatch(any(), any());
+
+        assertFallsBack(batcher);
+    }
+
+    @Test
+    void failedBatchFallsBackToEachCallersOwnQuery() throws Exception {
+        CostQueryBatcher batcher = batcher(true, 200_000);
+        doThrow(new DataAccessResourceFailureException("warehouse down")).when(costStore).streamCostBatch(any(), any());
+
+        assertFallsBack(batcher);
+    }
+
+    private void assertFallsBack(CostQueryBatcher batcher) throws Exception {
+        CostAggregator firstAlone = new CostAggregator();
+        CostAggregator secondAlone = new CostAggregator();
+
+        List<CostAggregator> results = withQueryInFlight(batcher, () -> {
+            CompletableFuture<CostAggregator> first = CompletableFuture.supplyAsync(
+                    () -> batcher.execute(filter("1", 25), () -> firstAlone), executor);
+            CompletableFuture<CostAggregator> second = CompletableFuture.supplyAsync(
+                    () -> batcher.execute(filter("2", 25), () -> secondAlone), executor);
+            return List.of(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+        });
+
+        assertSame(firstAlone, results.get(0));
+        assertSame(secondAlone, results.get(1));
+        verify(costStore).streamCostBatch(any(), any());
+    }
+
+    // Runs the callers while a compatible query of account 3 is running on its own, so a window opens
+    private <T> T withQueryInFlight(CostQueryBatcher batcher, Callers<T> callers) throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<CostAggregator> inFlight = CompletableFuture.supplyAsync(
+                () -> batcher.execute(filter("3", 25), () -> {
+                    running.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new CostAggregator();
+                }), executor);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        try {
+            return callers.run();
+        } finally {
+            release.countDown();
+            inFlight.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Window long enough that the batch only closes once both callers have joined
+    private CostQueryBatcher batcher(boolean enabled, int maxRows) {
+        when(costStore.getDialect()).thenReturn(CostSqlDialect.SNOWFLAKE);
+        CostQueryBuilder builder = new CostQueryBuilder(new CostRollupRegistry(null, false, "", 0), costStore);
+        ReflectionTestUtils.setField(builder, "defaultTopN", 25);
+        ReflectionTestUtils.setField(builder, "maxTopN", 500);
+        ReflectionTestUtils.setField(builder, "accountSetThreshold", 128);
+        return new CostQueryBatcher(builder, costStore, new SimpleMeterRegistry(), enabled, 5_000, 2, 500, maxRows);
+    }
+
+    private static CostExplorerFilterDTO filter(String accountId, int topN) {
+        return CostExplorerFilterDTO.builder()
+                .accountIds(List.of(accountId))
+                .groupBy("Service")
+                .startDate(LocalDate.of(2024, 1, 1))
+                .endDate(LocalDate.of(2024, 1, 31))
+                .topN(topN)
+                .build();
+    }
+
+    // group_index, group_key, time_period, total_cost_micros, account_id
+    private static ResultSet row(String groupKey, long costMicros, String accountId) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getInt(1)).thenReturn(0);
+        when(rs.getString(2)).thenReturn(groupKey);
+        when(rs.getString(3)).thenReturn("1-2024");
+        when(rs.getLong(4)).thenReturn(costMicros);
+        when(rs.getString(5)).thenReturn(accountId);
+        return rs;
+    }
+
+    private static List<String> groupKeys(CostAggregator aggregator) {
+        return aggregator.toResponse().getGroups().stream().map(CostGroupDTO::getKey).sorted().toList();
+    }
+
+    private static CostAggregator unexpected() {
+        throw new AssertionError("batched caller ran its own query");
+    }
+
+    private interface Callers<T> {
+        T run() throws Exception;
+    }
+}
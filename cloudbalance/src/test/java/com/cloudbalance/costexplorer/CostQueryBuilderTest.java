@@ -0,0 +1,173 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.repository.CostStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Equivalent filters must share SQL text, and bind values must match the column types the warehouse prunes on
+class CostQueryBuilderTest {
+
+    private static final LocalDate START = LocalDate.of(2024, 1, 1);
+    private static final LocalDate END = LocalDate.of(2024, 3, 31);
+
+    @Test
+    void equivalentFiltersShareOneTemplate() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        CostQuery first = builder.buildCostDataQuery(filter().services(List.of("EC2", "S3", "EC2")).build());
+        CostQuery second = builder.buildCostDataQuery(filter().services(List.of("S3", "EC2")).topN(25).build());
+
+        assertEquals(first.getShapeKey(), second.getShapeKey());
+        assertEquals(first.getSql(), second.getSql());
+        assertEquals(first.getParameters(), second.getParameters());
+        assertEquals(1, builder.getTemplateCount());
+    }
+
+    @Test
+    void inListsArePaddedToThePowerOfTwo() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        CostQuery three = builder.buildCostDataQuery(filter().regions(List.of("a", "b", "c")).build(), false);
+        CostQuery four = builder.buildCostDataQuery(filter().regions(List.of("a", "b", "c", "d")).build(), false);
+
+        assertEquals(three.getSql(), four.getSql());
+        assertTrue(three.getSql().contains("MYCLOUD_REGIONNAME IN (?,?,?,?)"));
+        // Dates, then the values with the last one repeated
+        assertEquals(List.of("2024-01-01", "2024-03-31", "a", "b", "c", "c"), three.getParameters());
+    }
+
+    @Test
+    void accountIdsAreBoundAsNumbers() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        CostQuery query = builder.buildCostDataQuery(filter().accountIds(List.of("012345678901")).build(), false);
+
+        assertTrue(query.getSql().contains("LINKEDACCOUNTID IN (?)"));
+        assertFalse(query.getSql().contains("CAST(LINKEDACCOUNTID"));
+        assertEquals(12345678901L, query.getParameters().get(0));
+    }
+
+    @Test
+    void malformedAccountIdsAreNotSilentlyDropped() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> builder.buildCostDataQuery(filter().accountIds(List.of("123", "abc")).build(), false));
+    }
+
+    @Test
+    void largeAccountFiltersAreOneSetParameter() {
+        CostQueryBuilder snowflake = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+        CostQueryBuilder local = builder(CostSqlDialect.H2, new CostRollupRegistry(null, false, "", 0));
+        CostExplorerFilterDTO filter = filter().accountIds(accountIds(500)).build();
+
+        CostQuery snowflakeQuery = snowflake.buildCostDataQuery(filter, false);
+        CostQuery localQuery = local.buildCostDataQuery(filter, false);
+
+        assertTrue(snowflakeQuery.getSql().contains("entitled.VALUE::NUMBER"));
+        assertTrue(localQuery.getSql().contains("LINKEDACCOUNTID = ANY(?)"));
+        AccountIdSet set = assertInstanceOf(AccountIdSet.class, snowflakeQuery.getParameters().get(0));
+        assertEquals(500, set.getAccountIds().size());
+        assertTrue(set.toString().startsWith("[1000,1001,"));
+        // One account more or less keeps the same text
+        assertEquals(snowflakeQuery.getSql(),
+                snowflake.buildCostDataQuery(filter().accountIds(accountIds(501)).build(), false).getSql());
+    }
+
+    @Test
+    void rankedQueryBindsTheCutOffAfterTheFilters() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        CostQuery query = builder.buildCostDataQuery(filter().topN(10).build());
+
+        assertTrue(query.getSql().contains("GROUP BY GROUPING SETS ((group_key, time_period), (group_key), (time_period), ())"));
+        assertTrue(query.getSql().contains("r.group_rank <= ?"));
+        assertEquals(List.of("2024-01-01", "2024-03-31", 10), query.getParameters());
+        assertEquals(10, query.getTopN());
+        assertTrue(query.isLevelled());
+    }
+
+    @Test
+    void topNIsCappedAndDefaulted() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        assertEquals(500, builder.buildCostDataQuery(filter().topN(100_000).build()).getTopN());
+        assertEquals(25, builder.buildCostDataQuery(filter().topN(0).build()).getTopN());
+    }
+
+    @Test
+    void localStoreRanksWithUnionsInsteadOfGroupingSets() {
+        CostQueryBuilder builder = builder(CostSqlDialect.H2, new CostRollupRegistry(null, false, "", 0));
+
+        String sql = builder.buildCostDataQuery(filter().includeAccountTotals(true).build()).getSql();
+
+        assertFalse(sql.contains("GROUPING SETS"));
+        assertTrue(sql.contains(CostAggregator.ACCOUNT_TOTAL + " AS grouping_level, account_id AS account_id"));
+    }
+
+    @Test
+    void batchQueryTagsRowsByGroupColumn() {
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, new CostRollupRegistry(null, false, "", 0));
+
+        CostQuery query = builder.buildBatchQuery(filter().build(), List.of("PRODUCT_PRODUCTNAME", "LINKEDACCOUNTID"), true);
+
+        // Every set holds the account column, so the account-only set is tested last
+        assertTrue(query.getSql().contains("GROUPING SETS ((PRODUCT_PRODUCTNAME, LINKEDACCOUNTID, time_period), "
+                + "(LINKEDACCOUNTID, time_period))"));
+        assertTrue(query.getSql().contains("CASE WHEN GROUPING(PRODUCT_PRODUCTNAME) = 0 THEN 0 "
+                + "WHEN GROUPING(LINKEDACCOUNTID) = 0 THEN 1 END AS group_index"));
+        assertTrue(query.getSql().contains("CAST(LINKEDACCOUNTID AS VARCHAR) AS account_id"));
+        assertFalse(query.isLevelled());
+    }
+
+    @Test
+    void rollupsAreFilteredOnTheirDayColumn() {
+        CostRollupRegistry registry = new CostRollupRegistry(null, true, "by_service:Service", 0);
+        registry.getRollups().get(0).markRefreshed(10);
+        CostQueryBuilder builder = builder(CostSqlDialect.SNOWFLAKE, registry);
+
+        CostQuery rolledUp = builder.buildCostDataQuery(filter().services(List.of("EC2")).build(), false);
+        CostQuery raw = builder.buildCostDataQuery(filter().regions(List.of("eu-west-1")).build(), false);
+
+        assertNotEquals(CostRollupRegistry.RAW_TABLE, rolledUp.getSource());
+        assertTrue(rolledUp.getSql().contains(" FROM " + rolledUp.getSource() + " WHERE USAGE_DATE BETWEEN ? AND ?"));
+        assertEquals(CostRollupRegistry.RAW_TABLE, raw.getSource());
+        assertTrue(raw.getSql().contains("USAGESTARTDATE BETWEEN ? AND ?"));
+    }
+
+    private static CostQueryBuilder builder(CostSqlDialect dialect, CostRollupRegistry registry) {
+        CostStore store = mock(CostStore.class);
+        when(store.getDialect()).thenReturn(dialect);
+        CostQueryBuilder builder = new CostQueryBuilder(registry, store);
+        ReflectionTestUtils.setField(builder, "defaultTopN", 25);
+        ReflectionTestUtils.setField(builder, "maxTopN", 500);
+        ReflectionTestUtils.setField(builder, "accountSetThreshold", 128);
+        return builder;
+    }
+
+    private static CostExplorerFilterDTO.CostExplorerFilterDTOBuilder filter() {
+        return CostExplorerFilterDTO.builder().groupBy("Service").startDate(START).endDate(END);
+    }
+
+    private static List<String> accountIds(int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(String.valueOf(1000 + i));
+        }
+        return ids;
+    }
+}
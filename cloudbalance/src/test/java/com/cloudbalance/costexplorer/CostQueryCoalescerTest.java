@@ -0,0 +1,173 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Identical concurrent queries run once; a follower only fails with the leader when the failure is its own too
+class CostQueryCoalescerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CostQueryCoalescer coalescer = new CostQueryCoalescer(meterRegistry, true);
+    private final CostResultCache.Key key = new CostResultCache(new SimpleMeterRegistry(), true, 10, 1_000, 300)
+            .keyFor(CostExplorerFilterDTO.builder().groupBy("Service").build());
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger executions = new AtomicInteger();
+        CostAggregator result = new CostAggregator();
+
+        CompletableFuture<CostAggregator> leader = CompletableFuture.supplyAsync(() -> coalescer.execute(key, () -> {
+            executions.incrementAndGet();
+            running.countDown();
+            await(release);
+            return result;
+        }), executor);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<CostAggregator> follower = CompletableFuture.supplyAsync(() -> coalescer.execute(key, () -> {
+            executions.incrementAndGet();
+            return new CostAggregator();
+        }), executor);
+        waitForFollower();
+        release.countDown();
+
+        assertSame(result, leader.get(5, TimeUnit.SECONDS));
+        assertSame(result, follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+        assertEquals(0, coalescer.inFlightCount());
+    }
+
+    @Test
+    void followerRunsTheQueryAgainWhenOnlyTheLeaderWasCancelled() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CostAggregator result = new CostAggregator();
+
+        CompletableFuture<CostAggregator> leader = CompletableFuture.supplyAsync(() -> coalescer.execute(key, () -> {
+            running.countDown();
+            await(release);
+            throw new CostQueryCancelledException(CostQueryCanceller.SUPERSEDED, null);
+        }), executor);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<CostAggregator> follower = CompletableFuture.supplyAsync(
+                () -> coalescer.execute(key, () -> result), executor);
+        waitForFollower();
+        release.countDown();
+
+        Exception leaderFailure = assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertTrue(leaderFailure.getCause() instanceof CostQueryCancelledException);
+        assertSame(result, follower.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void followerSeesTheLeadersQueryFailure() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<CostAggregator> leader = CompletableFuture.supplyAsync(() -> coalescer.execute(key, () -> {
+            running.countDown();
+            await(release);
+            throw new IllegalStateException("warehouse down");
+        }), executor);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<CostAggregator> follower = CompletableFuture.supplyAsync(
+                () -> coalescer.execute(key, CostAggregator::new), executor);
+        waitForFollower();
+        release.countDown();
+
+        assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+        Exception followerFailure = assertThrows(Exception.class, () -> follower.get(5, TimeUnit.SECONDS));
+        assertEquals("warehouse down", followerFailure.getCause().getMessage());
+    }
+
+    @Test
+    void cancelledFollowerStopsWaitingForTheLeader() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CostQueryContext followerContext = new CostQueryContext(null, 60_000);
+
+        CompletableFuture<CostAggregator> leader = CompletableFuture.supplyAsync(() -> coalescer.execute(key, () -> {
+            running.countDown();
+            await(release);
+            return new CostAggregator();
+        }), executor);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<CostAggregator> follower = CompletableFuture.supplyAsync(() -> CostQueryCanceller.callWith(
+                followerContext, () -> coalescer.execute(key, CostAggregator::new)), executor);
+        waitForFollower();
+        followerContext.cancel(CostQueryCanceller.DISCONNECTED);
+
+        // The leader is still running
+        Exception followerFailure = assertThrows(Exception.class, () -> follower.get(5, TimeUnit.SECONDS));
+        assertTrue(followerFailure.getCause() instanceof CostQueryCancelledException);
+        assertFalse(leader.isDone());
+        release.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void followerPastItsDeadlineStopsWaiting() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CostQueryContext followerContext = new CostQueryContext(null, 300);
+
+        CompletableFuture<CostAggregator> leader = CompletableFuture.supplyAsync(() -> coalescer.execute(key, () -> {
+            running.countDown();
+            await(release);
+            return new CostAggregator();
+        }), executor);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<CostAggregator> follower = CompletableFuture.supplyAsync(() -> CostQueryCanceller.callWith(
+                followerContext, () -> coalescer.execute(key, CostAggregator::new)), executor);
+
+        Exception followerFailure = assertThrows(Exception.class, () -> follower.get(5, TimeUnit.SECONDS));
+        CostQueryCancelledException cancelled =
+                assertInstanceOf(CostQueryCancelledException.class, followerFailure.getCause());
+        assertEquals(CostQueryCanceller.DEADLINE, cancelled.getReason());
+        release.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+    }
+
+    // The follower has attached once the coalesced counter moves
+    private void waitForFollower() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (coalescedCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private double coalescedCount() {
+        return meterRegistry.get("cost_explorer.coalescer.requests").tag("result", "coalesced").counter().count();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
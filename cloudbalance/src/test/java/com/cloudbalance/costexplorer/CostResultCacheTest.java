@@ -0,0 +1,142 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+// Results are shared only between identical filters and account sets, and never outlive their bounds
+class CostResultCacheTest {
+
+    @Test
+    void secondRequestIsServedFromTheCache() {
+        CostResultCache cache = cache(500, 1_000, 300);
+        AtomicInteger loads = new AtomicInteger();
+        CostResultCache.Key key = cache.keyFor(filter(List.of("1"), 1, 31));
+
+        CostAggregator first = cache.get(key, () -> {
+            loads.incrementAndGet();
+            return aggregator(1);
+        });
+        CostAggregator second = cache.get(cache.keyFor(filter(List.of("1"), 1, 31)), () -> {
+            loads.incrementAndGet();
+            return aggregator(1);
+        });
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void otherAccountSetsDoNotShareResults() {
+        CostResultCache cache = cache(500, 1_000, 300);
+
+        CostResultCache.Key one = cache.keyFor(filter(List.of("1"), 1, 31));
+        CostResultCache.Key two = cache.keyFor(filter(List.of("2"), 1, 31));
+        CostResultCache.Key all = cache.keyFor(filter(null, 1, 31));
+        cache.get(one, () -> aggregator(1));
+
+        assertNotEquals(one, two);
+        assertNotEquals(one, all);
+        assertNull(cache.getIfPresent(two));
+        assertNull(cache.getIfPresent(all));
+    }
+
+    @Test
+    void expiredEntriesAreLoadedAgain() throws InterruptedException {
+        CostResultCache cache = cache(500, 1_000, 0);
+        CostResultCache.Key key = cache.keyFor(filter(null, 1, 31));
+        cache.get(key, () -> aggregator(1));
+
+        Thread.sleep(5);
+
+        assertNull(cache.getIfPresent(key));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesAreEvictedByWeight() {
+        // One group over one period weighs 1 + 1 + 1 * (1 + 1) = 4
+        CostResultCache cache = cache(500, 10, 300);
+        CostResultCache.Key first = cache.keyFor(filter(List.of("1"), 1, 31));
+        CostResultCache.Key second = cache.keyFor(filter(List.of("2"), 1, 31));
+        CostResultCache.Key third = cache.keyFor(filter(List.of("3"), 1, 31));
+
+        cache.get(first, () -> aggregator(1));
+        cache.get(second, () -> aggregator(1));
+        cache.getIfPresent(first);
+        cache.get(third, () -> aggregator(1));
+
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.weight());
+        assertNull(cache.getIfPresent(second));
+        assertSame(cache.getIfPresent(first), cache.getIfPresent(first));
+    }
+
+    @Test
+    void resultsHeavierThanTheCacheAndPartialResultsAreNotKept() {
+        CostResultCache cache = cache(500, 10, 300);
+        CostResultCache.Key heavy = cache.keyFor(filter(List.of("1"), 1, 31));
+        CostResultCache.Key partial = cache.keyFor(filter(List.of("2"), 1, 31));
+
+        cache.get(heavy, () -> aggregator(5));
+        cache.get(partial, () -> {
+            CostAggregator result = aggregator(1);
+            result.markPartial();
+            return result;
+        });
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void invalidationDropsOnlyOverlappingEntriesOfTheAccount() {
+        CostResultCache cache = cache(500, 1_000, 300);
+        CostResultCache.Key january = cache.keyFor(filter(List.of("1"), 1, 31));
+        CostResultCache.Key march = cache.keyFor(filter(List.of("1"), 60, 90));
+        CostResultCache.Key otherAccount = cache.keyFor(filter(List.of("2"), 1, 31));
+        CostResultCache.Key allAccounts = cache.keyFor(filter(null, 1, 31));
+        for (CostResultCache.Key key : List.of(january, march, otherAccount, allAccounts)) {
+            cache.get(key, () -> aggregator(1));
+        }
+
+        int removed = cache.invalidate("1", LocalDate.of(2024, 1, 15), LocalDate.of(2024, 1, 20));
+
+        assertEquals(2, removed);
+        assertNull(cache.getIfPresent(january));
+        assertNull(cache.getIfPresent(allAccounts));
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.weight());
+    }
+
+    private static CostResultCache cache(int maxEntries, long maxWeight, long ttlSeconds) {
+        return new CostResultCache(new SimpleMeterRegistry(), true, maxEntries, maxWeight, ttlSeconds);
+    }
+
+    private static CostExplorerFilterDTO filter(List<String> accountIds, int startDay, int endDay) {
+        return CostExplorerFilterDTO.builder()
+                .accountIds(accountIds)
+                .groupBy("Service")
+                .startDate(LocalDate.ofYearDay(2024, startDay))
+                .endDate(LocalDate.ofYearDay(2024, endDay))
+                .topN(25)
+                .build();
+    }
+
+    private static CostAggregator aggregator(int groups) {
+        CostAggregator aggregator = new CostAggregator();
+        for (int g = 0; g < groups; g++) {
+            aggregator.add("group-" + g, "1-2024", 1_000_000);
+        }
+        return aggregator;
+    }
+}
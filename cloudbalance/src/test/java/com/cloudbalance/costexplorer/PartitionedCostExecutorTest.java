@@ -0,0 +1,240 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.repository.CostStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Partitions must cover the filter exactly once, stay within the admitted parallelism and survive one failure
+class PartitionedCostExecutorTest {
+
+    private static final LocalDate START = LocalDate.of(2024, 1, 15);
+    private static final LocalDate END = LocalDate.of(2024, 12, 20);
+
+    private final CostStore costStore = mock(CostStore.class);
+    private final PartitionedCostExecutor executor = executor();
+    // Partition queries by start date, and how often each ran
+    private final List<CostExplorerFilterDTO> partitions = Collections.synchronizedList(new ArrayList<>());
+    private final Map<LocalDate, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void plansMonthRangesAndAccountShards() {
+        assertEquals(4, executor.partitionCount(filter(START, END, null)));
+        assertEquals(3, executor.partitionCount(filter(START, START.plusMonths(1), accountIds(250))));
+        // Short and narrow: one statement
+        assertEquals(1, executor.partitionCount(filter(START, START.plusMonths(2), accountIds(10))));
+    }
+
+    @Test
+    void partitionsCoverTheRangeExactlyOnce() {
+        answerWith(partition -> { });
+        CostAggregator target = new CostAggregator();
+
+        executor.aggregate(filter(START, END, null), target, 4);
+
+        List<CostExplorerFilterDTO> ran = sortedPartitions();
+        assertEquals(4, ran.size());
+        assertEquals(START, ran.get(0).getStartDate());
+        assertEquals(END, ran.get(3).getEndDate());
+        for (int i = 1; i < ran.size(); i++) {
+            assertEquals(ran.get(i - 1).getEndDate().plusDays(1), ran.get(i).getStartDate());
+        }
+        assertEquals(4, target.getRowCount());
+        assertFalse(target.isPartial());
+    }
+
+    @Test
+    void noMoreThanTheAdmittedPartitionsRunAtOnce() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        answerWith(partition -> {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+
+        executor.aggregate(filter(START, END, null), new CostAggregator(), 2);
+
+        assertEquals(2, mostRunning.get());
+        assertEquals(4, partitions.size());
+    }
+
+    @Test
+    void failedPartitionIsRetriedOnce() {
+        answerWith(partition -> {
+            if (partition.getStartDate().equals(START) && attempts.get(START).get() == 1) {
+                throw new DataAccessResourceFailureException("connection reset");
+            }
+        });
+        CostAggregator target = new CostAggregator();
+
+        executor.aggregate(filter(START, END, null), target, 4);
+
+        assertEquals(2, attempts.get(START).get());
+        assertEquals(4, target.getRowCount());
+        assertFalse(target.isPartial());
+    }
+
+    @Test
+    void partitionFailingTwiceLeavesAPartialResult() {
+        answerWith(partition -> {
+            if (partition.getStartDate().equals(START)) {
+                throw new DataAccessResourceFailureException("connection reset");
+            }
+        });
+        CostAggregator target = new CostAggregator();
+
+        executor.aggregate(filter(START, END, null), target, 4);
+
+        assertEquals(3, target.getRowCount());
+        assertTrue(target.isPartial());
+    }
+
+    @Test
+    void everyPartitionFailingFailsTheQuery() {
+        answerWith(partition -> {
+            throw new DataAccessResourceFailureException("warehouse down");
+        });
+
+        assertThrows(DataAccessResourceFailureException.class,
+                () -> executor.aggregate(filter(START, END, null), new CostAggregator(), 4));
+    }
+
+    @Test
+    void cancelledPartitionCancelsTheQueryWithoutRetry() {
+        answerWith(partition -> {
+            throw new CostQueryCancelledException(CostQueryCanceller.SUPERSEDED, null);
+        });
+
+        assertThrows(CostQueryCancelledException.class,
+                () -> executor.aggregate(filter(START, END, null), new CostAggregator(), 1));
+        assertEquals(1, attempts.get(START).get());
+    }
+
+    @Test
+    void missedDeadlineCancelsTheRunningStatements() {
+        PartitionedCostExecutor shortDeadline = executor(200);
+        List<CostQueryContext> contexts = Collections.synchronizedList(new ArrayList<>());
+        answerWith(partition -> {
+            // Stands in for a warehouse statement, which cancel() would stop
+            CostQueryContext context = CostQueryCanceller.current();
+            contexts.add(context);
+            long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!context.isCancelled() && System.nanoTime() < giveUp) {
+                Thread.sleep(10);
+            }
+        });
+
+        try {
+            assertThrows(QueryTimeoutException.class,
+                    () -> shortDeadline.aggregate(filter(START, END, null), new CostAggregator(), 4));
+        } finally {
+            shortDeadline.shutdown();
+        }
+        assertFalse(contexts.isEmpty());
+        for (CostQueryContext context : contexts) {
+            assertEquals(CostQueryCanceller.DEADLINE, context.getCancelReason());
+        }
+    }
+
+    @Test
+    void cancelledRequestCancelsItsPartitions() {
+        CostQueryContext request = new CostQueryContext(null, 60_000);
+        List<CostQueryContext> contexts = Collections.synchronizedList(new ArrayList<>());
+        answerWith(partition -> {
+            contexts.add(CostQueryCanceller.current());
+            request.cancel(CostQueryCanceller.DISCONNECTED);
+            throw new CostQueryCancelledException(CostQueryCanceller.current().getCancelReason(), null);
+        });
+
+        assertThrows(CostQueryCancelledException.class, () -> CostQueryCanceller.callWith(request,
+                () -> { executor.aggregate(filter(START, END, null), new CostAggregator(), 1); return null; }));
+        assertEquals(CostQueryCanceller.DISCONNECTED, contexts.get(0).getCancelReason());
+    }
+
+    // Each partition adds one cell for its first month, after the given behaviour
+    private void answerWith(PartitionBehaviour behaviour) {
+        doAnswer(invocation -> {
+            CostQuery query = invocation.getArgument(0);
+            CostAggregator aggregator = invocation.getArgument(1);
+            CostExplorerFilterDTO partition = query.getFilter();
+            attempts.computeIfAbsent(partition.getStartDate(), d -> new AtomicInteger()).incrementAndGet();
+            partitions.add(partition);
+            behaviour.run(partition);
+            aggregator.add("EC2", partition.getStartDate().getMonthValue() + "-2024", 1_000_000);
+            return null;
+        }).when(costStore).streamCostData(any(), any());
+    }
+
+    private List<CostExplorerFilterDTO> sortedPartitions() {
+        List<CostExplorerFilterDTO> sorted = new ArrayList<>(partitions);
+        sorted.sort((a, b) -> a.getStartDate().compareTo(b.getStartDate()));
+        return sorted;
+    }
+
+    private PartitionedCostExecutor executor() {
+        return executor(10_000);
+    }
+
+    // Three months per partition, 100 accounts per shard, at most 16 partitions
+    private PartitionedCostExecutor executor(long deadlineMillis) {
+        when(costStore.getDialect()).thenReturn(CostSqlDialect.SNOWFLAKE);
+        CostQueryBuilder builder = new CostQueryBuilder(new CostRollupRegistry(null, false, "", 0), costStore);
+        ReflectionTestUtils.setField(builder, "defaultTopN", 25);
+        ReflectionTestUtils.setField(builder, "maxTopN", 500);
+        ReflectionTestUtils.setField(builder, "accountSetThreshold", 128);
+        return new PartitionedCostExecutor(builder, costStore, new SimpleMeterRegistry(), true, 8, 256, 6, 3, 100, 16,
+                deadlineMillis);
+    }
+
+    private static CostExplorerFilterDTO filter(LocalDate start, LocalDate end, List<String> accountIds) {
+        return CostExplorerFilterDTO.builder()
+                .accountIds(accountIds)
+                .groupBy("Service")
+                .startDate(start)
+                .endDate(end)
+                .build();
+    }
+
+    private static List<String> accountIds(int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(String.valueOf(1000 + i));
+        }
+        return ids;
+    }
+
+    private interface PartitionBehaviour {
+        void run(CostExplorerFilterDTO partition) throws Exception;
+    }
+}
@@ -0,0 +1,66 @@
+package com.cloudbalance.costexplorer;
+
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Arrow and JSON results must decode to the same response, cell for cell, through CostAggregator.
+// Only runs against a real warehouse:
+//   ./gradlew test --tests '*ResultFormatEquivalenceTest' -Dsnowflake.test.url=jdbc:snowflake://...
+//       -Dsnowflake.test.user=... -Dsnowflake.test.password=...
+@EnabledIfSystemProperty(named = "snowflake.test.url", matches = ".+")
+class ResultFormatEquivalenceTest {
+
+    // Many groups, NULL keys and fractional costs; ordered, so both formats deliver rows in the same order
+    private static final String QUERY = "SELECT LINEITEM_USAGETYPE || '|' || LINEITEM_OPERATION AS group_key, "
+            + "CONCAT(MYCLOUD_STARTMONTH, '-', MYCLOUD_STARTYEAR) AS time_period, "
+            + CostMicros.SUM_SQL + " AS total_cost_micros "
+            + "FROM cost_explorer GROUP BY group_key, time_period ORDER BY time_period, group_key";
+
+    @Test
+    void arrowAndJsonGiveTheSameResponse() throws SQLException {
+        Properties properties = new Properties();
+        properties.put("user", System.getProperty("snowflake.test.user"));
+        properties.put("password", System.getProperty("snowflake.test.password"));
+
+        try (Connection connection = DriverManager.getConnection(System.getProperty("snowflake.test.url"), properties)) {
+            CostAggregator json = aggregate(connection, "JSON");
+            CostAggregator arrow = aggregate(connection, "ARROW");
+
+            assertTrue(json.getRowCount() > 0);
+            assertEquals(json.getRowCount(), arrow.getRowCount());
+            CostExplorerResponseDTO expected = json.toResponse();
+            CostExplorerResponseDTO actual = arrow.toResponse();
+            assertEquals(expected.getTimeUnits(), actual.getTimeUnits());
+            assertEquals(expected.getTotals(), actual.getTotals());
+            assertEquals(expected.getGrandTotal(), actual.getGrandTotal());
+            assertEquals(expected.getGroups(), actual.getGroups());
+        }
+    }
+
+    private static CostAggregator aggregate(Connection connection, String format) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER SESSION SET JDBC_QUERY_RESULT_FORMAT = '" + format + "'");
+        }
+
+        CostAggregator aggregator = new CostAggregator(4096);
+        try (PreparedStatement statement = connection.prepareStatement(QUERY);
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                aggregator.processRow(rs);
+            }
+        }
+        return aggregator;
+    }
+}
@@ -0,0 +1,148 @@
+package com.cloudbalance.repository;
+
+import com.cloudbalance.costexplorer.CostAggregator;
+import com.cloudbalance.costexplorer.CostQueryBuilder;
+import com.cloudbalance.costexplorer.CostQueryCanceller;
+import com.cloudbalance.costexplorer.CostRollupRegistry;
+import com.cloudbalance.dto.CostExplorerFilterDTO;
+import com.cloudbalance.dto.CostExplorerResponseDTO;
+import com.cloudbalance.dto.CostGroupDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The SQL CostQueryBuilder renders for the local store must run on H2 and return the same figures as summing
+// the line items by hand
+class LocalCostStoreTest {
+
+    private static final LocalDate START = LocalDate.of(2024, 1, 1);
+    private static final LocalDate END = LocalDate.of(2024, 2, 29);
+
+    private final CostQueryCanceller costQueryCanceller = new CostQueryCanceller(new SimpleMeterRegistry(), 60_000, 2, 16);
+    private LocalCostStore store;
+
+    @BeforeEach
+    void load() throws Exception {
+        store = new LocalCostStore(costQueryCanceller, 0, 13, 200, 500, 42, 1000);
+        store.load();
+        JdbcTemplate jdbcTemplate = (JdbcTemplate) ReflectionTestUtils.getField(store, "jdbcTemplate");
+        insert(jdbcTemplate, "2024-01-10", 111, "EC2", "1.2500000001");
+        insert(jdbcTemplate, "2024-01-11", 111, "S3", "0.5");
+        insert(jdbcTemplate, "2024-02-05", 222, "EC2", "2");
+        insert(jdbcTemplate, "2024-02-06", 222, "Lambda", "0.1");
+        // Outside the date range
+        insert(jdbcTemplate, "2024-03-01", 333, "S3", "4");
+    }
+
+    @AfterEach
+    void shutdown() {
+        store.shutdown();
+        costQueryCanceller.shutdown();
+    }
+
+    @Test
+    void rankedQueryReturnsTopGroupsOtherAndTotals() {
+        CostExplorerResponseDTO response = costData(builder(128),
+                filter().topN(1).includeAccountTotals(true).build());
+
+        Map<String, BigDecimal> groupTotals = groupTotals(response);
+        assertDecimal("3.25", groupTotals.get("EC2"));
+        assertDecimal("0.6", groupTotals.get("Other"));
+        assertEquals(2, groupTotals.size());
+        assertEquals(List.of("1-2024", "2-2024"), response.getTimeUnits());
+        assertDecimal("1.75", response.getTotals().get("1-2024"));
+        assertDecimal("2.1", response.getTotals().get("2-2024"));
+        assertDecimal("3.85", response.getGrandTotal());
+        assertDecimal("1.75", response.getAccountTotals().get("111"));
+        assertDecimal("2.1", response.getAccountTotals().get("222"));
+    }
+
+    @Test
+    void accountIdsMatchTheNumericColumn() {
+        CostExplorerResponseDTO response = costData(builder(128), filter().accountIds(List.of("0111")).build());
+
+        assertDecimal("1.75", response.getGrandTotal());
+    }
+
+    @Test
+    void accountSetParameterMatchesLikeTheInList() {
+        CostExplorerFilterDTO filter = filter().accountIds(List.of("111", "222", "999")).build();
+
+        CostExplorerResponseDTO inList = costData(builder(128), filter);
+        CostExplorerResponseDTO set = costData(builder(1), filter);
+
+        assertDecimal("3.85", inList.getGrandTotal());
+        assertEquals(groupTotals(inList), groupTotals(set));
+    }
+
+    @Test
+    void batchQuerySplitsCellsByAccount() {
+        List<String> rows = new ArrayList<>();
+        store.streamCostBatch(builder(128).buildBatchQuery(filter().build(), List.of("PRODUCT_PRODUCTNAME"), true),
+                rs -> rows.add(rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3) + "|" + rs.getLong(4)
+                        + "|" + rs.getString(5)));
+
+        rows.sort(null);
+        assertEquals(List.of(
+                "0|EC2|1-2024|1250000|111",
+                "0|EC2|2-2024|2000000|222",
+                "0|Lambda|2-2024|100000|222",
+                "0|S3|1-2024|500000|111"), rows);
+    }
+
+    @Test
+    void listsAccountIdsAsText() {
+        assertEquals(List.of("111", "222", "333"), store.getAllAccountIds());
+    }
+
+    private CostExplorerResponseDTO costData(CostQueryBuilder builder, CostExplorerFilterDTO filter) {
+        CostAggregator aggregator = new CostAggregator();
+        store.streamCostData(builder.buildCostDataQuery(filter), aggregator);
+        return aggregator.toResponse();
+    }
+
+    private CostQueryBuilder builder(int accountSetThreshold) {
+        CostQueryBuilder builder = new CostQueryBuilder(new CostRollupRegistry(null, false, "", 0), store);
+        ReflectionTestUtils.setField(builder, "defaultTopN", 25);
+        ReflectionTestUtils.setField(builder, "maxTopN", 500);
+        ReflectionTestUtils.setField(builder, "accountSetThreshold", accountSetThreshold);
+        return builder;
+    }
+
+    private static CostExplorerFilterDTO.CostExplorerFilterDTOBuilder filter() {
+        return CostExplorerFilterDTO.builder().groupBy("Service").startDate(START).endDate(END);
+    }
+
+    private static Map<String, BigDecimal> groupTotals(CostExplorerResponseDTO response) {
+        Map<String, BigDecimal> totals = new LinkedHashMap<>();
+        for (CostGroupDTO group : response.getGroups()) {
+            totals.put(group.getKey(), group.getTotal());
+        }
+        return totals;
+    }
+
+    private static void insert(JdbcTemplate jdbcTemplate, String day, long accountId, String service, String cost) {
+        LocalDate date = LocalDate.parse(day);
+        jdbcTemplate.update("INSERT INTO cost_explorer (USAGESTARTDATE, MYCLOUD_STARTYEAR, MYCLOUD_STARTMONTH, "
+                        + "LINKEDACCOUNTID, PRODUCT_PRODUCTNAME, LINEITEM_UNBLENDEDCOST) VALUES (?, ?, ?, ?, ?, ?)",
+                Timestamp.valueOf(date.atStartOfDay()), date.getYear(), date.getMonthValue(), accountId, service,
+                new BigDecimal(cost));
+    }
+
+    private static void assertDecimal(String expected, BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual), () -> expected + " != " + actual);
+    }
+}
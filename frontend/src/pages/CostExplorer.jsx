@@ -211,7 +211,10 @@ const CostExplorer = () => {
             : null,
       };
 
-      const response = await api.post("/cost-explorer/data", filterData);
+      // A newer chart request supersedes this one on the server (answered with 409)
+      const response = await api.post("/cost-explorer/data", filterData, {
+        headers: { "X-Cost-Query-Key": "chart" },
+      });
 
       // Check if the response data is empty or effectively empty
       const isEmpty =
@@ -230,6 +233,10 @@ const CostExplorer = () => {
         setError(null);
       }
     } catch (err) {
+      if (err.response?.status === 409) {
+        // Superseded by a newer request, whose result replaces this one
+        return;
+      }
       console.error("Error fetching cost data:", err);
       setError("Failed to load cost data. Please try again.");
       setCostData(null);